@@ -0,0 +1,668 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.freshvanilla.utils.Callback;
+import org.freshvanilla.utils.VanillaResource;
+
+/**
+ * State and framing shared by the blocking and the selector driven DataSockets. A frame is
+ * a 4 byte length (including itself) followed by the message, padded to MIN_PACKET_SIZE.
+ * <p>
+ * When both sides support BinaryWireFormat.CHUNKED, a message which doesn't fit in the
+ * write buffer is sent as several frames. The top bit of the length is set on every frame
+ * but the last, and the reader joins the frames back together. The buffers then only have
+ * to hold CHUNK_SIZE bytes; with older peers they hold maximumMessageSize bytes as before.
+ * A message joined from chunks can be up to the maximum assembled size, past which the
+ * connection is failed.
+ * <p>
+ * When both sides support UNPADDED_FRAMES, frames after the headers are not padded, so
+ * small messages don't take MIN_PACKET_SIZE bytes each. With both features, messages
+ * written under lockWrite() can be held back in the write buffer as a run of frames and
+ * written to the channel together. They are held back while the thread reading the socket
+ * has more requests buffered, so the replies to requests which arrived together leave
+ * together, or as a WriteCoalescing set on the socket allows.
+ * <p>
+ * The buffers are returned to the DirectBufferPool when the socket is closed, once no
+ * thread can still be using them. The write buffer is returned under lockWrite(), so
+ * messages are written under the lock by any thread which may race with close(). The read
+ * buffers belong to the thread reading the socket until it is done with the messages it
+ * read, and it returns them if the socket was closed meanwhile.
+ */
+abstract class AbstractDataSocket extends VanillaResource implements DataSocket, ChunkedOutput {
+
+    static final int MIN_PACKET_SIZE = 256;
+    static final int BUFFER_SIZE = 256 * 1024;
+    static final int CHUNK_SIZE = 32 * 1024;
+    static final int MORE_FRAMES = 0x80000000;
+    // header key for the optional encodings the sender's WireFormat can read.
+    static final String FEATURES_HEADER = "features";
+    // feature for frames which are only as long as their length.
+    static final String UNPADDED_FRAMES = "unpadded-frames";
+
+    private final InetSocketAddress _address;
+    private final WireFormat _wireFormat;
+    private final AtomicLong _microTimestamp = new AtomicLong(System.currentTimeMillis() * 1000L);
+    private final CallbackTable _callbacks = new CallbackTable();
+    private final DirectBufferPool _bufferPool;
+    private final AtomicBoolean _readBuffersReleased = new AtomicBoolean();
+    // the thread using the read buffers, or null between messages.
+    private final AtomicReference<Thread> _readingThread = new AtomicReference<Thread>();
+    private final int _maximumMessageSize;
+    private volatile int _maximumAssembledSize = DataSocketFactory.DEFAULT_MAXIMUM_ASSEMBLED_SIZE;
+    // replaced by a maximumMessageSize buffer if the other side can't read chunks, and
+    // null once closed. Guarded by _writeLock.
+    private ByteBuffer _writeBuffer;
+    private volatile Map<String, Object> _otherHeader;
+    private volatile Object _attachment = null;
+    private boolean _paddedFrames = true;
+    // whether frames can be added after those held back in the write buffer.
+    private boolean _appendFrames = false;
+
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    private volatile WriteCoalescing _coalescing = null;
+    // where the frame being written starts, after the frames held back.
+    private int _frameStart = 0;
+    // set once a chunk of a message has been sent, until its last frame has been.
+    private boolean _messageUnfinished = false;
+    private int _heldBack = 0;
+    private long _heldBackNanos = 0;
+    private boolean _flushScheduled = false;
+    // writes the messages held back once they have waited the WriteCoalescing's delay.
+    private final Runnable _delayedFlush = new Runnable() {
+        public void run() {
+            _writeLock.lock();
+            try {
+                _flushScheduled = false;
+                if (_heldBack > 0 && !isClosed()) {
+                    writeHeldBack();
+                }
+            }
+            catch (IOException e) {
+                getLog().debug(getName() + ": failed to write the messages held back", e);
+            }
+            finally {
+                _writeLock.unlock();
+            }
+        }
+    };
+
+    // the message being joined together from its chunks.
+    private ByteBuffer _assembly = null;
+    private boolean _assembling = false;
+
+    AbstractDataSocket(String name,
+                       InetSocketAddress address,
+                       WireFormat wireFormat,
+                       int maximumMessageSize,
+                       DirectBufferPool bufferPool) {
+        super(name);
+        _address = address;
+        _wireFormat = wireFormat;
+        _maximumMessageSize = maximumMessageSize;
+        _bufferPool = bufferPool;
+        _writeBuffer = bufferPool.acquire(chunkSize(maximumMessageSize));
+    }
+
+    static void configureSocket(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(true);
+        socket.setSendBufferSize(BUFFER_SIZE);
+        socket.setReceiveBufferSize(BUFFER_SIZE);
+
+        try {
+            // 0x10 = IPTOS_LOWDELAY
+            socket.setTrafficClass(0x10);
+        }
+        catch (SocketException sex) {
+            // no IP_TOS for you
+        }
+    }
+
+    ByteBuffer acquireBuffer(int size) {
+        // we always use direct buffers.
+        return _bufferPool.acquire(size);
+    }
+
+    void releaseBuffer(ByteBuffer buffer) {
+        if (buffer != null) {
+            _bufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * @return the size of the buffers used for reading and writing frames.
+     */
+    static int chunkSize(int maximumMessageSize) {
+        return maximumMessageSize < CHUNK_SIZE ? maximumMessageSize : CHUNK_SIZE;
+    }
+
+    /**
+     * Sets the size a message joined from chunks can grow to before the connection fails.
+     */
+    void setMaximumAssembledSize(int maximumAssembledSize) {
+        _maximumAssembledSize = maximumAssembledSize;
+    }
+
+    public InetSocketAddress getAddress() {
+        return _address;
+    }
+
+    public Map<String, Object> getOtherHeader() {
+        return _otherHeader;
+    }
+
+    public Object getAttachment() {
+        return _attachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        _attachment = attachment;
+    }
+
+    protected void writeHeader(Map<String, Object> header) throws IOException {
+        Map<String, Object> header2 = new LinkedHashMap<String, Object>(header);
+        header2.put(FEATURES_HEADER, supportedFeatures());
+
+        _writeLock.lock();
+        try {
+            // chunks can't be sent until the headers have been read, so the whole header has
+            // to fit in the buffer as every message did before chunks.
+            final ByteBuffer chunkBuffer = writeBuffer();
+            if (chunkBuffer.capacity() < _maximumMessageSize) {
+                _writeBuffer = acquireBuffer(_maximumMessageSize);
+            }
+            try {
+                _wireFormat.writeObject(writeBuffer(), header2);
+                flush();
+            }
+            finally {
+                if (_writeBuffer == null) {
+                    // closed while writing, which released the larger buffer.
+                    releaseBuffer(chunkBuffer);
+                }
+                else if (_writeBuffer != chunkBuffer) {
+                    releaseBuffer(_writeBuffer);
+                    _writeBuffer = chunkBuffer;
+                }
+            }
+        }
+        finally {
+            _writeLock.unlock();
+        }
+    }
+
+    private Set<String> supportedFeatures() {
+        Set<String> features = new LinkedHashSet<String>(_wireFormat.supportedFeatures());
+        features.add(UNPADDED_FRAMES);
+        return features;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void readOtherHeader(ByteBuffer rb) throws ClassNotFoundException, IOException {
+        _otherHeader = (Map<String, Object>)_wireFormat.readObject(rb);
+
+        // older versions don't send any features.
+        Object otherFeatures = _otherHeader.get(FEATURES_HEADER);
+        Set<String> features = new LinkedHashSet<String>();
+        if (otherFeatures instanceof Collection<?>) {
+            features.addAll(supportedFeatures());
+            features.retainAll((Collection<?>)otherFeatures);
+            _wireFormat.enableFeatures(features);
+        }
+
+        // the other side has read our header by the time it writes anything else.
+        _paddedFrames = !features.contains(UNPADDED_FRAMES);
+
+        if (features.contains(BinaryWireFormat.CHUNKED) && _wireFormat instanceof BinaryWireFormat) {
+            ((BinaryWireFormat)_wireFormat).setChunkedOutput(this);
+            // a message which doesn't fit after the frames held back is sent in chunks.
+            _appendFrames = !_paddedFrames;
+        }
+        else {
+            _writeLock.lock();
+            try {
+                // whole messages have to fit in one frame.
+                if (_writeBuffer != null && _writeBuffer.capacity() < _maximumMessageSize) {
+                    releaseBuffer(_writeBuffer);
+                    _writeBuffer = acquireBuffer(_maximumMessageSize);
+                }
+            }
+            finally {
+                _writeLock.unlock();
+            }
+        }
+    }
+
+    public WireFormat wireFormat() {
+        return _wireFormat;
+    }
+
+    public void addCallback(long sequenceNumber, Callback<?> callback) {
+        _callbacks.put(sequenceNumber, callback, CallbackTable.NO_DEADLINE);
+    }
+
+    public void addCallback(long sequenceNumber, Callback<?> callback, long timeoutMillis) {
+        long deadline = timeoutMillis > 0
+                        ? System.currentTimeMillis() + timeoutMillis
+                        : CallbackTable.NO_DEADLINE;
+        _callbacks.put(sequenceNumber, callback, deadline);
+    }
+
+    public Callback<?> removeCallback(long sequenceNumber) {
+        return _callbacks.remove(sequenceNumber);
+    }
+
+    /**
+     * Fails the callbacks whose replies are overdue with a TimeoutException.
+     */
+    protected void expireCallbacks(long timeMillis) {
+        List<Callback<?>> expired = _callbacks.expire(timeMillis);
+        if (expired == null) {
+            return;
+        }
+
+        for (final Callback<?> callback : expired) {
+            final TimeoutException e = new TimeoutException(getName() + ": no reply in time");
+            if (hasReader()) {
+                // not on the thread checking every DataSocket.
+                callbackExecutor().execute(new Runnable() {
+                    public void run() {
+                        callback.onException(e);
+                    }
+                });
+            }
+            else {
+                callback.onException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes any messages held back under the previous WriteCoalescing.
+     */
+    public void setWriteCoalescing(WriteCoalescing coalescing) {
+        _writeLock.lock();
+        try {
+            if (_heldBack > 0 && !isClosed()) {
+                writeHeldBack();
+            }
+        }
+        catch (IOException e) {
+            getLog().debug(getName() + ": failed to write the messages held back", e);
+        }
+        finally {
+            _coalescing = coalescing;
+            _writeLock.unlock();
+        }
+    }
+
+    public WriteCoalescing getWriteCoalescing() {
+        return _coalescing;
+    }
+
+    public void lockWrite() {
+        _writeLock.lock();
+    }
+
+    public void unlockWrite() throws IOException {
+        try {
+            if (_messageUnfinished && _writeLock.getHoldCount() == 1) {
+                closeUnfinished();
+                return;
+            }
+
+            // written by the thread which holds the lock next, or once the requests buffered
+            // have been handled.
+            if (_heldBack == 0 || _writeLock.getHoldCount() > 1 || _writeLock.hasQueuedThreads()
+                || moreToRead() || isClosed()) {
+                return;
+            }
+
+            final WriteCoalescing coalescing = _coalescing;
+            if (coalescing != null && coalescing.maximumDelayNanos() > 0) {
+                if (!_flushScheduled) {
+                    _flushScheduled = true;
+                    long delayNanos = _heldBackNanos + coalescing.maximumDelayNanos() - System.nanoTime();
+                    WriteCoalescing.schedule(_delayedFlush, delayNanos);
+                }
+                return;
+            }
+
+            writeHeldBack();
+        }
+        finally {
+            _writeLock.unlock();
+        }
+    }
+
+    /**
+     * @throws IllegalStateException once the socket is closed, which it is if the chunks of
+     *             the last message were sent but not the rest of it.
+     */
+    public ByteBuffer writeBuffer() {
+        if (_messageUnfinished) {
+            closeUnfinished();
+            throw new IllegalStateException(getName() + " is closed, a message was left unfinished");
+        }
+        return nextFrame();
+    }
+
+    private ByteBuffer nextFrame() {
+        final ByteBuffer wb = _writeBuffer;
+        if (wb == null) {
+            throw new IllegalStateException(getName() + " is closed!");
+        }
+        if (_frameStart == 0) {
+            wb.clear();
+        }
+        else {
+            // after the frames held back, dropping anything written after them.
+            wb.limit(wb.capacity());
+            wb.position(_frameStart);
+        }
+        // so we can write the length later.
+        wb.position(wb.position() + 4);
+        return wb;
+    }
+
+    public void flush() throws IOException {
+        if (holdBack()) {
+            final ByteBuffer wb = _writeBuffer;
+            wb.putInt(_frameStart, wb.position() - _frameStart);
+            _frameStart = wb.position();
+            if (_heldBack++ == 0) {
+                _heldBackNanos = System.nanoTime();
+            }
+            _messageUnfinished = false;
+            return;
+        }
+
+        write(completeFrame(false), _heldBack + 1);
+        _messageUnfinished = false;
+    }
+
+    public void flushChunk() throws IOException {
+        _messageUnfinished = true;
+        write(completeFrame(true), _heldBack);
+        nextFrame();
+    }
+
+    // the peer would join the frames of the next message onto the chunks already sent.
+    private void closeUnfinished() {
+        getLog().debug(getName() + ": closing as a message was left unfinished");
+        _messageUnfinished = false;
+        close();
+    }
+
+    // whether the message just written can wait to be written with others.
+    private boolean holdBack() {
+        if (!_appendFrames || !_writeLock.isHeldByCurrentThread()) {
+            return false;
+        }
+
+        final WriteCoalescing coalescing = _coalescing;
+        final int maximumBatchBytes = coalescing != null
+                        ? coalescing.getMaximumBatchBytes()
+                        : _writeBuffer.capacity() / 2;
+        return _writeBuffer.position() < maximumBatchBytes
+               && (moreToRead() || coalescing != null
+                                   && (_writeLock.hasQueuedThreads() || coalescing.maximumDelayNanos() > 0));
+    }
+
+    /**
+     * @return whether the current thread is reading this socket and has another frame
+     *         buffered, so replies can wait to be written with the reply to it.
+     */
+    protected boolean moreToRead() {
+        return false;
+    }
+
+    /**
+     * @return whether a whole frame has been read into the buffer between start and end,
+     *         which has to be within its limit.
+     */
+    boolean frameBuffered(ByteBuffer buffer, int start, int end) {
+        return end - start >= 4 && frameSize(frameLength(buffer.getInt(start))) <= end - start;
+    }
+
+    private void writeHeldBack() throws IOException {
+        final ByteBuffer wb = _writeBuffer;
+        wb.limit(_frameStart);
+        wb.position(0);
+        write(wb, _heldBack);
+    }
+
+    private void write(ByteBuffer wb, int messages) throws IOException {
+        try {
+            writeFrame(wb);
+        }
+        catch (IOException e) {
+            if (_heldBack > 0) {
+                // the callers whose messages were held back find out when their callbacks fail.
+                close();
+            }
+            throw e;
+        }
+
+        final WriteCoalescing coalescing = _coalescing;
+        if (coalescing != null) {
+            coalescing.recordBatch(messages);
+        }
+        _frameStart = 0;
+        _heldBack = 0;
+    }
+
+    /**
+     * Writes the length of the message into its frame and flips the write buffer so it is
+     * ready to be written to the channel, with any frames held back before it.
+     */
+    private ByteBuffer completeFrame(boolean moreFrames) {
+        final ByteBuffer wb = _writeBuffer;
+        int len = wb.position() - _frameStart;
+        wb.putInt(_frameStart, moreFrames ? len | MORE_FRAMES : len);
+        wb.flip();
+
+        if (_paddedFrames && len < MIN_PACKET_SIZE) {
+            wb.limit(MIN_PACKET_SIZE);
+        }
+
+        return wb;
+    }
+
+    /**
+     * @return the number of bytes a frame with the given length header occupies on the wire.
+     */
+    int frameSize(int len) {
+        return _paddedFrames && len < MIN_PACKET_SIZE ? MIN_PACKET_SIZE : len;
+    }
+
+    /**
+     * @return the length in a frame's length header, without the MORE_FRAMES flag.
+     */
+    static int frameLength(int header) {
+        return header & ~MORE_FRAMES;
+    }
+
+    /**
+     * @throws StreamCorruptedException if a frame this long can't have been sent.
+     */
+    protected void checkFrameLength(int len, int capacity) throws StreamCorruptedException {
+        if (len < 4 || (len > capacity && len > _maximumMessageSize)) {
+            throw new StreamCorruptedException(getName() + ": invalid message length " + len);
+        }
+    }
+
+    /**
+     * Joins the chunks of a message together.
+     *
+     * @param frame positioned over the message part of a frame, after its length.
+     * @return the message once its last frame has been read, or null while more are to come.
+     * @throws StreamCorruptedException if the message grows past the maximum assembled size.
+     */
+    protected ByteBuffer assemble(ByteBuffer frame) throws StreamCorruptedException {
+        final boolean moreFrames = frame.getInt(frame.position() - 4) < 0;
+
+        if (!_assembling) {
+            if (!moreFrames) {
+                // drop an unusually large message once it has been read.
+                if (_assembly != null && _assembly.capacity() > _maximumMessageSize) {
+                    _assembly = null;
+                }
+                return frame;
+            }
+
+            if (_assembly == null) {
+                // messages are joined in a heap buffer as they are never written to a channel.
+                _assembly = ByteBuffer.allocate(Math.min(frame.remaining() * 4, _maximumAssembledSize));
+            }
+            _assembly.clear();
+            _assembling = true;
+        }
+
+        if (_assembly.remaining() < frame.remaining()) {
+            final long needed = (long)_assembly.position() + frame.remaining();
+            final int maximum = _maximumAssembledSize;
+            if (needed > maximum) {
+                _assembly = null;
+                _assembling = false;
+                throw new StreamCorruptedException(getName() + ": message longer than the maximum of " + maximum
+                                                   + " bytes");
+            }
+
+            long size = _assembly.capacity() * 2L;
+            while (size < needed) {
+                size *= 2;
+            }
+            _assembly.flip();
+            _assembly = ByteBuffer.allocate((int)Math.min(size, maximum)).put(_assembly);
+        }
+        _assembly.put(frame);
+
+        if (moreFrames) {
+            return null;
+        }
+
+        _assembling = false;
+        _assembly.flip();
+        return _assembly;
+    }
+
+    /**
+     * Called before the read buffers are used, by the thread which is then using them.
+     *
+     * @throws ClosedChannelException if the socket is closed.
+     */
+    protected void startReading() throws ClosedChannelException {
+        final Thread thread = Thread.currentThread();
+        if (_readingThread.get() != thread) {
+            _readingThread.set(thread);
+        }
+
+        // close() either sees this thread reading or is seen here.
+        if (isClosed()) {
+            doneReading();
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Called by the thread reading the socket once it has finished with the messages it
+     * read, returning the read buffers to the pool if the socket has been closed meanwhile.
+     * Does nothing on other threads.
+     */
+    void doneReading() {
+        if (_readingThread.compareAndSet(Thread.currentThread(), null) && isClosed()) {
+            releaseReadBuffersOnce();
+        }
+    }
+
+    /**
+     * @return whether the current thread is reading the socket.
+     */
+    protected boolean isReadingThread() {
+        return _readingThread.get() == Thread.currentThread();
+    }
+
+    private void releaseReadBuffersOnce() {
+        if (_readBuffersReleased.compareAndSet(false, true)) {
+            releaseReadBuffers();
+        }
+    }
+
+    public long microTimestamp() {
+        return _microTimestamp.getAndIncrement();
+    }
+
+    public void close() {
+        super.close();
+        closeChannel();
+
+        // otherwise the thread reading returns them once it is done.
+        if (_readingThread.get() == null) {
+            releaseReadBuffersOnce();
+        }
+
+        // after any thread writing, which has been woken by closing the channel.
+        _writeLock.lock();
+        try {
+            releaseBuffer(_writeBuffer);
+            _writeBuffer = null;
+        }
+        finally {
+            _writeLock.unlock();
+        }
+
+        for (Callback<?> callback : _callbacks.removeAll()) {
+            callback.onException(new IllegalStateException(getName() + " is closed!"));
+        }
+    }
+
+    /**
+     * Writes a complete frame to the channel.
+     */
+    protected abstract void writeFrame(ByteBuffer frame) throws IOException;
+
+    /**
+     * Returns the buffers used for reading to the DirectBufferPool, once closed and no
+     * thread is reading.
+     */
+    protected abstract void releaseReadBuffers();
+
+    /**
+     * Releases the underlying channel and any threads reading it.
+     */
+    protected abstract void closeChannel();
+}
@@ -27,6 +27,7 @@ import java.io.StreamCorruptedException;
 import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -35,16 +36,54 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.freshvanilla.lang.MetaClass;
 import org.freshvanilla.lang.MetaClasses;
 import org.freshvanilla.lang.MetaField;
 import org.freshvanilla.lang.ObjectBuilder;
+import org.freshvanilla.lang.misc.Unsafe;
 import org.freshvanilla.utils.Classes;
 import org.freshvanilla.utils.VanillaResource;
 
 public class BinaryWireFormat implements WireFormat {
 
+    /**
+     * Feature for writing primitive arrays other than byte[] as a length and a bulk copy
+     * instead of with Java serialization.
+     */
+    public static final String PRIMITIVE_ARRAYS = "primitive-arrays";
+
+    /**
+     * Feature for sending a message which doesn't fit in the write buffer as several frames.
+     */
+    public static final String CHUNKED = "chunked";
+
+    /**
+     * Feature for keeping the tags of a connection in a TagDictionary of fixed size, so a
+     * long lived connection doesn't hold on to every map key it has sent.
+     */
+    public static final String BOUNDED_TAGS = "bounded-tags";
+
+    /**
+     * Feature for writing numbers which don't fit in a byte, and lengths, as zigzag encoded
+     * varints, in as few bytes as their magnitude needs.
+     */
+    public static final String VARINTS = "varints";
+
+    /**
+     * Feature for writing strings as Latin-1 bytes copied in bulk, or as UTF-8 if they have
+     * other characters, instead of a byte per char and a second pass for chars >= 255.
+     */
+    public static final String COMPACT_STRINGS = "compact-strings";
+
+    private static final Set<String> SUPPORTED_FEATURES = Collections.unmodifiableSet(new LinkedHashSet<String>(
+        Arrays.asList(PRIMITIVE_ARRAYS, CHUNKED, BOUNDED_TAGS, VARINTS, COMPACT_STRINGS)));
+
+    // the most bytes written by one tag and the value which follows it, a 64-bit varint.
+    private static final int MAX_VALUE_SIZE = 11;
+
     private static final int BYTES_SIZE = 1024;
     private static final Object[] NO_OBJECTS = {};
 
@@ -55,17 +94,135 @@ public class BinaryWireFormat implements WireFormat {
 
     private final MetaClasses _metaClasses;
     private final PojoSerializer _serializer;
+    private final SerializerRegistry _serializers;
+
+    private boolean _primitiveArrays = false;
+    private boolean _varints = false;
+    private boolean _offerCompactStrings = true;
+    private boolean _compactStrings = false;
+    private StringCache _stringCache = null;
+    // shared by the wire formats a Builder creates.
+    private final ConcurrentMap<Class<?>, ClassKind> _writeKinds;
+    private ChunkedOutput _chunkedOutput = null;
+    private int _tagCapacity = TagDictionary.DEFAULT_CAPACITY;
+    // replaces the unbounded outTagMap and inTagList once both ends support BOUNDED_TAGS.
+    private TagDictionary _tags = null;
 
     public BinaryWireFormat(MetaClasses metaclasses) {
+        this(metaclasses, new VanillaPojoSerializer(metaclasses));
+    }
+
+    public BinaryWireFormat(MetaClasses metaclasses, PojoSerializer serializer) {
+        this(metaclasses, serializer, new SerializerRegistry());
+    }
+
+    public BinaryWireFormat(MetaClasses metaclasses, PojoSerializer serializer, SerializerRegistry serializers) {
+        this(metaclasses, serializer, serializers, new ConcurrentHashMap<Class<?>, ClassKind>());
+    }
+
+    BinaryWireFormat(MetaClasses metaclasses,
+                     PojoSerializer serializer,
+                     SerializerRegistry serializers,
+                     ConcurrentMap<Class<?>, ClassKind> writeKinds) {
         super();
         _metaClasses = metaclasses;
-        _serializer = new VanillaPojoSerializer(metaclasses);
+        _serializer = serializer;
+        _serializers = serializers;
+        _writeKinds = writeKinds;
     }
 
     public void flush(DataSocket ds, ByteBuffer writeBuffer) throws IOException {
         ds.flush();
     }
 
+    public Set<String> supportedFeatures() {
+        if (_offerCompactStrings) {
+            return SUPPORTED_FEATURES;
+        }
+        Set<String> features = new LinkedHashSet<String>(SUPPORTED_FEATURES);
+        features.remove(COMPACT_STRINGS);
+        return features;
+    }
+
+    public void enableFeatures(Set<String> features) {
+        _primitiveArrays = features.contains(PRIMITIVE_ARRAYS);
+        _varints = features.contains(VARINTS);
+        _compactStrings = features.contains(COMPACT_STRINGS);
+
+        if (features.contains(BOUNDED_TAGS)) {
+            // the tags of the headers are no longer used.
+            _tags = new TagDictionary(_tagCapacity);
+            outTagMap.clear();
+            inTagList.clear();
+        }
+    }
+
+    /**
+     * Sets the number of tags kept for a connection with BOUNDED_TAGS, before the headers
+     * are exchanged.
+     */
+    public void setTagCapacity(int tagCapacity) {
+        _tagCapacity = tagCapacity;
+    }
+
+    /**
+     * Sets whether COMPACT_STRINGS is offered to the other end, before the headers are
+     * exchanged. It is offered by default.
+     */
+    public void setCompactStrings(boolean compactStrings) {
+        _offerCompactStrings = compactStrings;
+    }
+
+    /**
+     * Sets where the strings read are looked up so those read before are the same instance,
+     * or null to make a new String each time, the default.
+     */
+    public void setStringCache(StringCache stringCache) {
+        _stringCache = stringCache;
+    }
+
+    public StringCache getStringCache() {
+        return _stringCache;
+    }
+
+    /**
+     * Sets where a full write buffer is sent, or null if messages have to fit in it.
+     */
+    void setChunkedOutput(ChunkedOutput chunkedOutput) {
+        _chunkedOutput = chunkedOutput;
+    }
+
+    // sends what has been written so far if there isn't room for the next bytes.
+    private void reserve(ByteBuffer writeBuffer, int bytes) {
+        if (_chunkedOutput != null && writeBuffer.remaining() < bytes) {
+            try {
+                _chunkedOutput.flushChunk();
+            }
+            catch (IOException e) {
+                throw Unsafe.rethrow(e);
+            }
+        }
+    }
+
+    // the number of elements of the given size which can be written before the next chunk.
+    private int elementsBeforeChunk(ByteBuffer writeBuffer, int size, int elements) {
+        if (_chunkedOutput == null) {
+            return elements;
+        }
+        reserve(writeBuffer, size);
+        int room = writeBuffer.remaining() / size;
+        return room < elements ? room : elements;
+    }
+
+    private void putBytes(ByteBuffer writeBuffer, byte[] bytes, int off, int len) {
+        while (len > 0) {
+            int len2 = elementsBeforeChunk(writeBuffer, 1, len);
+            writeBuffer.put(bytes, off, len2);
+            off += len2;
+            len -= len2;
+        }
+    }
+
     public boolean readBoolean(ByteBuffer readBuffer) throws StreamCorruptedException {
         byte b = readBuffer.get();
         SpecialTag tag = asSTag(b, "boolean");
@@ -80,6 +237,7 @@ public class BinaryWireFormat implements WireFormat {
     }
 
     public void writeBoolean(ByteBuffer writeBuffer, boolean flag) {
+        reserve(writeBuffer, 1);
         writeSTag(writeBuffer, flag ? SpecialTag.TRUE : SpecialTag.FALSE);
     }
 
@@ -121,6 +279,10 @@ public class BinaryWireFormat implements WireFormat {
             case CHAR :
                 return readBuffer.getChar();
 
+            case VARINT4 :
+            case VARINT8 :
+                return readVarint(readBuffer);
+
             default :
                 throw new StreamCorruptedException("Expected a number, got a " + tag);
         }
@@ -161,12 +323,17 @@ public class BinaryWireFormat implements WireFormat {
             case CHAR :
                 return readBuffer.getChar();
 
+            case VARINT4 :
+            case VARINT8 :
+                return readVarint(readBuffer);
+
             default :
                 throw new StreamCorruptedException("Expected a double, got a " + tag);
         }
     }
 
     public void writeArray(ByteBuffer writeBuffer, int maxLength, Object... objects) throws IOException {
+        reserve(writeBuffer, 1);
         writeSTag(writeBuffer, SpecialTag.ARRAY);
         int len = maxLength > objects.length ? objects.length : maxLength;
         writeNum(writeBuffer, len);
@@ -242,6 +409,12 @@ public class BinaryWireFormat implements WireFormat {
             case CHAR :
                 return readBuffer.getChar();
 
+            case VARINT4 :
+                return (int)readVarint(readBuffer);
+
+            case VARINT8 :
+                return readVarint(readBuffer);
+
             case SERIALIZABLE :
                 return readSerializable0(readBuffer);
 
@@ -269,6 +442,15 @@ public class BinaryWireFormat implements WireFormat {
             case POJO :
                 return _serializer.deserialize(readBuffer, this);
 
+            case CUSTOM : {
+                long typeId = readNum(readBuffer);
+                TypeSerializer<?> serializer = _serializers.forTypeId(typeId);
+                if (serializer == null) {
+                    throw new StreamCorruptedException("No TypeSerializer registered for type id " + typeId);
+                }
+                return serializer.read(readBuffer, this);
+            }
+
             case BYTES :
                 int len = readLen(readBuffer);
                 byte[] bytes = new byte[len];
@@ -280,11 +462,68 @@ public class BinaryWireFormat implements WireFormat {
 
             case META_CLASS :
                 return _metaClasses.acquireMetaClass(readString(readBuffer));
+
+            case BOOLEANS :
+                return readBooleans(readBuffer);
+
+            case SHORTS :
+                short[] shorts = new short[readArrayLen(readBuffer, 2)];
+                readBuffer.asShortBuffer().get(shorts);
+                readBuffer.position(readBuffer.position() + shorts.length * 2);
+                return shorts;
+
+            case CHARS :
+                char[] chars = new char[readArrayLen(readBuffer, 2)];
+                readBuffer.asCharBuffer().get(chars);
+                readBuffer.position(readBuffer.position() + chars.length * 2);
+                return chars;
+
+            case INTS :
+                int[] ints = new int[readArrayLen(readBuffer, 4)];
+                readBuffer.asIntBuffer().get(ints);
+                readBuffer.position(readBuffer.position() + ints.length * 4);
+                return ints;
+
+            case LONGS :
+                long[] longs = new long[readArrayLen(readBuffer, 8)];
+                readBuffer.asLongBuffer().get(longs);
+                readBuffer.position(readBuffer.position() + longs.length * 8);
+                return longs;
+
+            case FLOATS :
+                float[] floats = new float[readArrayLen(readBuffer, 4)];
+                readBuffer.asFloatBuffer().get(floats);
+                readBuffer.position(readBuffer.position() + floats.length * 4);
+                return floats;
+
+            case DOUBLES :
+                double[] doubles = new double[readArrayLen(readBuffer, 8)];
+                readBuffer.asDoubleBuffer().get(doubles);
+                readBuffer.position(readBuffer.position() + doubles.length * 8);
+                return doubles;
         }
 
         throw new UnsupportedOperationException("Tag " + stag + " not supported.");
     }
 
+    // the length of a primitive array, checked against the bytes left so a corrupt length
+    // doesn't allocate a huge array.
+    private int readArrayLen(ByteBuffer readBuffer, int elementSize) throws StreamCorruptedException {
+        int len = readLen(readBuffer);
+        if (len > readBuffer.remaining() / elementSize) {
+            throw new StreamCorruptedException("array length invalid, len=" + len);
+        }
+        return len;
+    }
+
+    private boolean[] readBooleans(ByteBuffer readBuffer) throws StreamCorruptedException {
+        boolean[] booleans = new boolean[readArrayLen(readBuffer, 1)];
+        for (int i = 0; i < booleans.length; i++) {
+            booleans[i] = readBuffer.get() != 0;
+        }
+        return booleans;
+    }
+
     private Map<Object, Object> readMap(ByteBuffer readBuffer) throws ClassNotFoundException, IOException {
         int len = readLen(readBuffer);
         Map<Object, Object> map = len > 0
@@ -360,115 +599,286 @@ public class BinaryWireFormat implements WireFormat {
     }
 
     public void writeObject(ByteBuffer writeBuffer, Object object) throws IOException {
+        reserve(writeBuffer, MAX_VALUE_SIZE);
+
         if (object == null) {
             writeSTag(writeBuffer, SpecialTag.NULL);
             return;
         }
 
-        if (_serializer.canSerialize(object)) {
-            writeSTag(writeBuffer, SpecialTag.POJO);
-            _serializer.serialize(writeBuffer, this, object);
-            return;
-        }
+        final ClassKind classKind = writeKind(object);
+        switch (classKind._kind) {
+            case CUSTOM :
+                writeCustom(writeBuffer, classKind._registered, object);
+                return;
 
-        if (object instanceof Number) {
-            if (object instanceof Byte) {
+            case POJO :
+                writeSTag(writeBuffer, SpecialTag.POJO);
+                _serializer.serialize(writeBuffer, this, object);
+                return;
+
+            case BYTE :
                 writeSTag(writeBuffer, SpecialTag.SIGNED1);
                 writeBuffer.put((Byte)object);
                 return;
-            }
-            if (object instanceof Short) {
+
+            case SHORT :
                 writeSTag(writeBuffer, SpecialTag.SIGNED2);
                 writeBuffer.putShort((Short)object);
                 return;
-            }
-            if (object instanceof Integer) {
+
+            case INTEGER : {
                 int value = (Integer)object;
                 if (value >= 0 && value <= Byte.MAX_VALUE) {
                     writeBuffer.put((byte)value);
                 }
+                else if (_varints) {
+                    writeSTag(writeBuffer, SpecialTag.VARINT4);
+                    writeVarint(writeBuffer, value);
+                }
                 else {
                     writeSTag(writeBuffer, SpecialTag.SIGNED4);
                     writeBuffer.putInt(value);
                 }
                 return;
             }
-            if (object instanceof Long) {
+
+            case LONG :
+                if (_varints) {
+                    writeSTag(writeBuffer, SpecialTag.VARINT8);
+                    writeVarint(writeBuffer, (Long)object);
+                    return;
+                }
                 writeSTag(writeBuffer, SpecialTag.SIGNED8);
                 writeBuffer.putLong((Long)object);
                 return;
-            }
-            if (object instanceof Float) {
+
+            case FLOAT :
                 writeSTag(writeBuffer, SpecialTag.FLOAT4);
                 writeBuffer.putFloat((Float)object);
                 return;
-            }
-            if (object instanceof Double) {
+
+            case DOUBLE :
                 writeSTag(writeBuffer, SpecialTag.FLOAT8);
                 writeBuffer.putDouble((Double)object);
                 return;
-            }
 
-        }
-        else if (object instanceof Collection<?>) {
-            if (object instanceof Set<?>) {
+            case SET :
                 writeCollection(writeBuffer, SpecialTag.SET, (Set<?>)object);
-            }
-            else {
+                return;
+
+            case LIST :
                 writeCollection(writeBuffer, SpecialTag.LIST, (Collection<?>)object);
+                return;
+
+            case MAP :
+                writeMap(writeBuffer, (Map<?, ?>)object);
+                return;
+
+            case ENTRY :
+                writeEntry(writeBuffer, (Entry<?, ?>)object);
+                return;
+
+            case ENUM :
+                writeEnum(writeBuffer, (Enum<?>)object);
+                return;
+
+            case BOOLEAN :
+                writeBoolean(writeBuffer, (Boolean)object);
+                return;
+
+            case STRING :
+                writeString(writeBuffer, (String)object);
+                return;
+
+            case CHAR :
+                writeSTag(writeBuffer, SpecialTag.CHAR);
+                writeBuffer.putChar((Character)object);
+                return;
+
+            case CLASS :
+                writeSTag(writeBuffer, SpecialTag.CLASS);
+                writeTag(writeBuffer, ((Class<?>)object).getName());
+                return;
+
+            case META_CLASS :
+                writeSTag(writeBuffer, SpecialTag.META_CLASS);
+                writeTag(writeBuffer, ((MetaClass<?>)object).nameWithParameters());
+                return;
+
+            case BYTES : {
+                writeSTag(writeBuffer, SpecialTag.BYTES);
+                byte[] bytes = (byte[])object;
+                writeNum(writeBuffer, bytes.length);
+                putBytes(writeBuffer, bytes, 0, bytes.length);
+                return;
             }
-            return;
+
+            case PRIMITIVE_ARRAY :
+                if (_primitiveArrays) {
+                    writePrimitiveArray(writeBuffer, object);
+                    return;
+                }
+                break;
+
+            default :
+                break;
         }
-        else if (object instanceof Map<?, ?>) {
-            writeMap(writeBuffer, (Map<?, ?>)object);
+
+        if (object instanceof Serializable) {
+            writeSTag(writeBuffer, SpecialTag.SERIALIZABLE);
+            writeSerializable0(writeBuffer, object);
             return;
         }
-        else if (object instanceof Entry<?, ?>) {
-            writeEntry(writeBuffer, (Entry<?, ?>)object);
-            return;
+
+        throw new NotSerializableException("Unable to serialize " + object.getClass());
+    }
+
+    // worked out once per class, and again after another TypeSerializer is registered.
+    private ClassKind writeKind(Object object) {
+        final Class<?> clazz = object.getClass();
+        // before looking for a serializer, so one registered meanwhile is found next time.
+        final int registrations = _serializers.registrations();
+        ClassKind classKind = _writeKinds.get(clazz);
+        if (classKind == null || classKind._registrations != registrations) {
+            SerializerRegistry.Registered<?> registered = _serializers.forType(clazz);
+            WriteKind kind = registered != null ? WriteKind.CUSTOM
+                            : _serializer.canSerialize(object) ? WriteKind.POJO : WriteKind.of(clazz);
+            classKind = new ClassKind(kind, registered, registrations);
+            _writeKinds.put(clazz, classKind);
+        }
+        return classKind;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void writeCustom(ByteBuffer writeBuffer, SerializerRegistry.Registered<T> registered, Object object)
+        throws IOException {
+        writeSTag(writeBuffer, SpecialTag.CUSTOM);
+        writeNum(writeBuffer, registered._typeId);
+        registered._serializer.write(writeBuffer, this, (T)object);
+    }
+
+    /**
+     * The WriteKind of a class, and its serializer if it is CUSTOM, as of a number of
+     * registrations with the SerializerRegistry.
+     */
+    static final class ClassKind {
+        final WriteKind _kind;
+        final SerializerRegistry.Registered<?> _registered;
+        final int _registrations;
+
+        ClassKind(WriteKind kind, SerializerRegistry.Registered<?> registered, int registrations) {
+            _kind = kind;
+            _registered = registered;
+            _registrations = registrations;
         }
-        else if (object instanceof Enum<?>) {
-            writeEnum(writeBuffer, (Enum<?>)object);
-            return;
+    }
+
+    /**
+     * How writeObject() writes the objects of a class.
+     */
+    enum WriteKind {
+        CUSTOM, POJO, BYTE, SHORT, INTEGER, LONG, FLOAT, DOUBLE, SET, LIST, MAP, ENTRY, ENUM, BOOLEAN, STRING, CHAR,
+        CLASS, META_CLASS, BYTES, PRIMITIVE_ARRAY, OTHER;
+
+        // in the order of the instanceof checks writeObject() made before.
+        static WriteKind of(Class<?> clazz) {
+            if (Number.class.isAssignableFrom(clazz)) {
+                if (clazz == Byte.class) return BYTE;
+                if (clazz == Short.class) return SHORT;
+                if (clazz == Integer.class) return INTEGER;
+                if (clazz == Long.class) return LONG;
+                if (clazz == Float.class) return FLOAT;
+                if (clazz == Double.class) return DOUBLE;
+                return OTHER;
+            }
+            if (Collection.class.isAssignableFrom(clazz)) {
+                return Set.class.isAssignableFrom(clazz) ? SET : LIST;
+            }
+            if (Map.class.isAssignableFrom(clazz)) return MAP;
+            if (Entry.class.isAssignableFrom(clazz)) return ENTRY;
+            if (Enum.class.isAssignableFrom(clazz)) return ENUM;
+            if (clazz == Boolean.class) return BOOLEAN;
+            if (clazz == String.class) return STRING;
+            if (clazz == Character.class) return CHAR;
+            if (clazz == Class.class) return CLASS;
+            if (MetaClass.class.isAssignableFrom(clazz)) return META_CLASS;
+            if (clazz == byte[].class) return BYTES;
+            if (clazz.isArray() && clazz.getComponentType().isPrimitive()) return PRIMITIVE_ARRAY;
+            return OTHER;
         }
-        else if (object instanceof Boolean) {
-            writeBoolean(writeBuffer, (Boolean)object);
-            return;
+    }
+
+    private void writePrimitiveArray(ByteBuffer writeBuffer, Object array) {
+        if (array instanceof double[]) {
+            double[] doubles = (double[])array;
+            writeSTag(writeBuffer, SpecialTag.DOUBLES);
+            writeNum(writeBuffer, doubles.length);
+            for (int off = 0, len; off < doubles.length; off += len) {
+                len = elementsBeforeChunk(writeBuffer, 8, doubles.length - off);
+                writeBuffer.asDoubleBuffer().put(doubles, off, len);
+                writeBuffer.position(writeBuffer.position() + len * 8);
+            }
         }
-        else if (object instanceof String) {
-            writeString(writeBuffer, (String)object);
-            return;
+        else if (array instanceof long[]) {
+            long[] longs = (long[])array;
+            writeSTag(writeBuffer, SpecialTag.LONGS);
+            writeNum(writeBuffer, longs.length);
+            for (int off = 0, len; off < longs.length; off += len) {
+                len = elementsBeforeChunk(writeBuffer, 8, longs.length - off);
+                writeBuffer.asLongBuffer().put(longs, off, len);
+                writeBuffer.position(writeBuffer.position() + len * 8);
+            }
         }
-        else if (object instanceof Character) {
-            writeSTag(writeBuffer, SpecialTag.CHAR);
-            writeBuffer.putChar((Character)object);
-            return;
+        else if (array instanceof int[]) {
+            int[] ints = (int[])array;
+            writeSTag(writeBuffer, SpecialTag.INTS);
+            writeNum(writeBuffer, ints.length);
+            for (int off = 0, len; off < ints.length; off += len) {
+                len = elementsBeforeChunk(writeBuffer, 4, ints.length - off);
+                writeBuffer.asIntBuffer().put(ints, off, len);
+                writeBuffer.position(writeBuffer.position() + len * 4);
+            }
         }
-        else if (object instanceof Class<?>) {
-            writeSTag(writeBuffer, SpecialTag.CLASS);
-            writeTag(writeBuffer, ((Class<?>)object).getName());
-            return;
+        else if (array instanceof float[]) {
+            float[] floats = (float[])array;
+            writeSTag(writeBuffer, SpecialTag.FLOATS);
+            writeNum(writeBuffer, floats.length);
+            for (int off = 0, len; off < floats.length; off += len) {
+                len = elementsBeforeChunk(writeBuffer, 4, floats.length - off);
+                writeBuffer.asFloatBuffer().put(floats, off, len);
+                writeBuffer.position(writeBuffer.position() + len * 4);
+            }
         }
-        else if (object instanceof MetaClass<?>) {
-            writeSTag(writeBuffer, SpecialTag.META_CLASS);
-            writeTag(writeBuffer, ((MetaClass<?>)object).nameWithParameters());
-            return;
+        else if (array instanceof short[]) {
+            short[] shorts = (short[])array;
+            writeSTag(writeBuffer, SpecialTag.SHORTS);
+            writeNum(writeBuffer, shorts.length);
+            for (int off = 0, len; off < shorts.length; off += len) {
+                len = elementsBeforeChunk(writeBuffer, 2, shorts.length - off);
+                writeBuffer.asShortBuffer().put(shorts, off, len);
+                writeBuffer.position(writeBuffer.position() + len * 2);
+            }
         }
-        else if (object instanceof byte[]) {
-            writeSTag(writeBuffer, SpecialTag.BYTES);
-            byte[] bytes = (byte[])object;
-            writeNum(writeBuffer, bytes.length);
-            writeBuffer.put(bytes);
-            return;
+        else if (array instanceof char[]) {
+            char[] chars = (char[])array;
+            writeSTag(writeBuffer, SpecialTag.CHARS);
+            writeNum(writeBuffer, chars.length);
+            for (int off = 0, len; off < chars.length; off += len) {
+                len = elementsBeforeChunk(writeBuffer, 2, chars.length - off);
+                writeBuffer.asCharBuffer().put(chars, off, len);
+                writeBuffer.position(writeBuffer.position() + len * 2);
+            }
         }
-
-        if (object instanceof Serializable) {
-            writeSTag(writeBuffer, SpecialTag.SERIALIZABLE);
-            writeSerializable0(writeBuffer, object);
-            return;
+        else {
+            boolean[] booleans = (boolean[])array;
+            writeSTag(writeBuffer, SpecialTag.BOOLEANS);
+            writeNum(writeBuffer, booleans.length);
+            for (boolean flag : booleans) {
+                reserve(writeBuffer, 1);
+                writeBuffer.put((byte)(flag ? 1 : 0));
+            }
         }
-
-        throw new NotSerializableException("Unable to serialize " + object.getClass());
     }
 
     private void writeMap(ByteBuffer writeBuffer, Map<?, ?> map) throws IOException {
@@ -477,7 +887,7 @@ public class BinaryWireFormat implements WireFormat {
         for (Entry<?, ?> entry : map.entrySet()) {
             Object key = entry.getKey();
             if (key instanceof String)
-                writeTag(writeBuffer, (String)key);
+                writeTag(writeBuffer, (String)key, false);
             else
                 writeObject(writeBuffer, key);
             writeObject(writeBuffer, entry.getValue());
@@ -489,7 +899,7 @@ public class BinaryWireFormat implements WireFormat {
 
         Object key = entry.getKey();
         if (key instanceof String)
-            writeTag(writeBuffer, (String)key);
+            writeTag(writeBuffer, (String)key, false);
         else
             writeObject(writeBuffer, key);
         writeObject(writeBuffer, entry.getValue());
@@ -499,11 +909,9 @@ public class BinaryWireFormat implements WireFormat {
         throws IOException {
         writeSTag(writeBuffer, stag);
         writeNum(writeBuffer, collection.size());
+        // strings in collections are data, sent as they are rather than as tags.
         for (Object o : collection)
-            if (o instanceof String)
-                writeTag(writeBuffer, (String)o);
-            else
-                writeObject(writeBuffer, o);
+            writeObject(writeBuffer, o);
     }
 
     private void writeEnum(ByteBuffer writeBuffer, Enum<?> enumValue) {
@@ -520,7 +928,7 @@ public class BinaryWireFormat implements WireFormat {
         oos.close();
         byte[] bytes = baos.toByteArray();
         writeNum(writeBuffer, bytes.length);
-        writeBuffer.put(bytes);
+        putBytes(writeBuffer, bytes, 0, bytes.length);
     }
 
     private static void writeSTag(ByteBuffer writeBuffer, SpecialTag stag) {
@@ -528,9 +936,15 @@ public class BinaryWireFormat implements WireFormat {
     }
 
     public void writeNum(ByteBuffer writeBuffer, long value) {
+        reserve(writeBuffer, MAX_VALUE_SIZE);
+
         if (value >= 0 && value <= Byte.MAX_VALUE) {
             writeBuffer.put((byte)value);
         }
+        else if (_varints) {
+            writeSTag(writeBuffer, value == (int)value ? SpecialTag.VARINT4 : SpecialTag.VARINT8);
+            writeVarint(writeBuffer, value);
+        }
         else if (value == (byte)value) {
             writeSTag(writeBuffer, SpecialTag.SIGNED1);
             writeBuffer.put((byte)value);
@@ -551,7 +965,35 @@ public class BinaryWireFormat implements WireFormat {
         }
     }
 
-    public static void writeDouble(ByteBuffer writeBuffer, double value) {
+    // zigzag, so small negative numbers are short too, then 7 bits a byte, lowest first.
+    private static void writeVarint(ByteBuffer writeBuffer, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            writeBuffer.put((byte)(zigzag | 0x80));
+            zigzag >>>= 7;
+        }
+        writeBuffer.put((byte)zigzag);
+    }
+
+    private static long readVarint(ByteBuffer readBuffer) throws StreamCorruptedException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = readBuffer.get();
+            zigzag |= (long)(b & 0x7F) << shift;
+            if (b >= 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new StreamCorruptedException("Varint longer than 10 bytes");
+    }
+
+    public void writeDouble(ByteBuffer writeBuffer, double value) {
+        reserve(writeBuffer, MAX_VALUE_SIZE);
+        putDouble(writeBuffer, value);
+    }
+
+    // in as few bytes as hold the value exactly.
+    private static void putDouble(ByteBuffer writeBuffer, double value) {
         if (value == (byte)value) {
             if (value >= 0 && value <= Byte.MAX_VALUE) {
                 writeBuffer.put((byte)value);
@@ -583,7 +1025,31 @@ public class BinaryWireFormat implements WireFormat {
     private final List<String> inTagList = new ArrayList<String>();
 
     public void writeTag(ByteBuffer writeBuffer, String tag) {
+        writeTag(writeBuffer, tag, true);
+    }
+
+    /**
+     * @param structural false for tags which are data, such as map keys, and are the first
+     *            to be evicted from a TagDictionary.
+     */
+    private void writeTag(ByteBuffer writeBuffer, String tag, boolean structural) {
+        reserve(writeBuffer, 1);
         writeSTag(writeBuffer, SpecialTag.TAG);
+
+        final TagDictionary tags = _tags;
+        if (tags != null) {
+            // the slot in the upper bits, and whether the slot is defined by the tag after it.
+            final int slot = tags.outSlot(tag, structural);
+            if (slot >= 0) {
+                writeNum(writeBuffer, (long)slot << 1);
+            }
+            else {
+                writeNum(writeBuffer, ((long)(-1 - slot) << 1) | 1);
+                writeString0(writeBuffer, tag);
+            }
+            return;
+        }
+
         final Integer num = outTagMap.get(tag);
         if (num == null) {
             int num2 = outTagMap.size();
@@ -602,6 +1068,11 @@ public class BinaryWireFormat implements WireFormat {
     }
 
     private void writeString0(ByteBuffer writeBuffer, CharSequence text) {
+        if (_compactStrings) {
+            writeCompactString(writeBuffer, text);
+            return;
+        }
+
         int len = text.length();
         writeNum(writeBuffer, len);
 
@@ -624,19 +1095,104 @@ public class BinaryWireFormat implements WireFormat {
                     hichars = true;
                 }
             }
-            writeBuffer.put(bytes, 0, len2);
+            putBytes(writeBuffer, bytes, 0, len2);
         }
 
         if (hichars) {
             for (int i = 0; i < len; i++) {
                 char ch = text.charAt(i);
                 if (ch >= 255) {
+                    reserve(writeBuffer, 2);
                     writeBuffer.putChar(ch);
                 }
             }
         }
     }
 
+    // the length in bytes, with the lowest bit set if the bytes are UTF-8 rather than Latin-1.
+    @SuppressWarnings("deprecation")
+    private void writeCompactString(ByteBuffer writeBuffer, CharSequence text) {
+        final int len = text.length();
+        final byte[] bytes = _outBytesArray;
+
+        int latin1 = 0;
+        while (latin1 < len && text.charAt(latin1) < 0x100) {
+            latin1++;
+        }
+
+        if (latin1 == len) {
+            writeNum(writeBuffer, (long)len << 1);
+            for (int off = 0; off < len; off += BYTES_SIZE) {
+                int end = len - off < BYTES_SIZE ? len : off + BYTES_SIZE;
+                if (text instanceof String) {
+                    // a copy of the low bytes of the chars.
+                    ((String)text).getBytes(off, end, bytes, 0);
+                }
+                else {
+                    for (int i = off; i < end; i++) {
+                        bytes[i - off] = (byte)text.charAt(i);
+                    }
+                }
+                putBytes(writeBuffer, bytes, 0, end - off);
+            }
+            return;
+        }
+
+        long utf8Len = 0;
+        for (int i = 0; i < len; i++) {
+            final char ch = text.charAt(i);
+            if (ch < 0x80) {
+                utf8Len++;
+            }
+            else if (ch < 0x800) {
+                utf8Len += 2;
+            }
+            else if (isSurrogatePair(text, i)) {
+                utf8Len += 4;
+                i++;
+            }
+            else {
+                utf8Len += 3;
+            }
+        }
+        writeNum(writeBuffer, (utf8Len << 1) | 1);
+
+        int pos = 0;
+        for (int i = 0; i < len; i++) {
+            if (pos > BYTES_SIZE - 4) {
+                putBytes(writeBuffer, bytes, 0, pos);
+                pos = 0;
+            }
+            final char ch = text.charAt(i);
+            if (ch < 0x80) {
+                bytes[pos++] = (byte)ch;
+            }
+            else if (ch < 0x800) {
+                bytes[pos++] = (byte)(0xC0 | (ch >> 6));
+                bytes[pos++] = (byte)(0x80 | (ch & 0x3F));
+            }
+            else if (isSurrogatePair(text, i)) {
+                final int cp = Character.toCodePoint(ch, text.charAt(++i));
+                bytes[pos++] = (byte)(0xF0 | (cp >> 18));
+                bytes[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                bytes[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                bytes[pos++] = (byte)(0x80 | (cp & 0x3F));
+            }
+            else {
+                // including a lone surrogate, so any String reads back the same.
+                bytes[pos++] = (byte)(0xE0 | (ch >> 12));
+                bytes[pos++] = (byte)(0x80 | ((ch >> 6) & 0x3F));
+                bytes[pos++] = (byte)(0x80 | (ch & 0x3F));
+            }
+        }
+        putBytes(writeBuffer, bytes, 0, pos);
+    }
+
+    private static boolean isSurrogatePair(CharSequence text, int i) {
+        return Character.isHighSurrogate(text.charAt(i)) && i + 1 < text.length()
+               && Character.isLowSurrogate(text.charAt(i + 1));
+    }
+
     private String readTag0(ByteBuffer readBuffer) throws StreamCorruptedException {
         final long num = readNum(readBuffer);
 
@@ -644,6 +1200,16 @@ public class BinaryWireFormat implements WireFormat {
             throw new StreamCorruptedException("Invalid tag num= " + num);
         }
 
+        final TagDictionary tags = _tags;
+        if (tags != null) {
+            if ((num & 1) == 0) {
+                return tags.inTag(num >>> 1);
+            }
+            String ret = readString0(readBuffer);
+            tags.define(num >>> 1, ret);
+            return ret;
+        }
+
         final int size = inTagList.size();
         if (num == size) {
             String ret = readString0(readBuffer);
@@ -662,6 +1228,10 @@ public class BinaryWireFormat implements WireFormat {
     private final char[] inCharsArray = new char[BYTES_SIZE];
 
     private String readString0(ByteBuffer readBuffer) throws StreamCorruptedException {
+        if (_compactStrings) {
+            return readCompactString(readBuffer);
+        }
+
         int len = readLen(readBuffer);
         if (len == 0) {
             return "";
@@ -685,15 +1255,97 @@ public class BinaryWireFormat implements WireFormat {
 
         if (hichars) {
             for (int i = 0; i < len; i++) {
-                if (chars[i] == 255) {
+                if (bytes[i] == (byte)255) {
                     chars[i] = readBuffer.getChar();
                 }
             }
         }
+        else if (_stringCache != null) {
+            // without hichars, the bytes are Latin-1.
+            String ret = _stringCache.get(bytes, len, false);
+            if (ret == null) {
+                ret = new String(chars, 0, len);
+                _stringCache.add(bytes, len, false, ret);
+            }
+            return ret;
+        }
 
         return new String(chars, 0, len);
     }
 
+    @SuppressWarnings("deprecation")
+    private String readCompactString(ByteBuffer readBuffer) throws StreamCorruptedException {
+        final long num = readNum(readBuffer);
+        if (num < 0 || (num >>> 1) > Integer.MAX_VALUE) {
+            throw new StreamCorruptedException("length invalid, len=" + num);
+        }
+
+        final int len = (int)(num >>> 1);
+        if (len == 0) {
+            return "";
+        }
+
+        byte[] bytes = len <= BYTES_SIZE ? inBytesArray : new byte[len];
+        readBuffer.get(bytes, 0, len);
+
+        final boolean utf8 = (num & 1) != 0;
+        final StringCache cache = _stringCache;
+        String ret = cache == null ? null : cache.get(bytes, len, utf8);
+        if (ret == null) {
+            // for Latin-1, each byte is the low byte of a char.
+            ret = utf8 ? readUtf8(bytes, len) : new String(bytes, 0, 0, len);
+            if (cache != null) {
+                cache.add(bytes, len, utf8, ret);
+            }
+        }
+        return ret;
+    }
+
+    private String readUtf8(byte[] bytes, int len) throws StreamCorruptedException {
+        // there are never more chars than bytes.
+        final char[] chars = len <= BYTES_SIZE ? inCharsArray : new char[len];
+        int count = 0;
+        int i = 0;
+
+        while (i < len && bytes[i] >= 0) {
+            chars[count++] = (char)bytes[i++];
+        }
+
+        while (i < len) {
+            final int b = bytes[i++] & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char)b;
+            }
+            else if (b >= 0xC0 && b < 0xE0 && i < len) {
+                chars[count++] = (char)(((b & 0x1F) << 6) | continuation(bytes[i++]));
+            }
+            else if (b >= 0xE0 && b < 0xF0 && i + 1 < len) {
+                chars[count++] = (char)(((b & 0x0F) << 12) | (continuation(bytes[i++]) << 6)
+                                        | continuation(bytes[i++]));
+            }
+            else if (b >= 0xF0 && b < 0xF8 && i + 2 < len) {
+                final int cp = ((b & 0x07) << 18) | (continuation(bytes[i++]) << 12)
+                               | (continuation(bytes[i++]) << 6) | continuation(bytes[i++]);
+                if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT || cp > Character.MAX_CODE_POINT) {
+                    throw new StreamCorruptedException("Invalid code point " + cp);
+                }
+                count += Character.toChars(cp, chars, count);
+            }
+            else {
+                throw new StreamCorruptedException("Invalid UTF-8 byte " + b);
+            }
+        }
+
+        return new String(chars, 0, count);
+    }
+
+    private static int continuation(byte b) throws StreamCorruptedException {
+        if ((b & 0xC0) != 0x80) {
+            throw new StreamCorruptedException("Invalid UTF-8 continuation byte " + (b & 0xFF));
+        }
+        return b & 0x3F;
+    }
+
     public Object[] readArray(ByteBuffer rb) throws ClassNotFoundException, IOException {
         final Object o = readObject(rb);
         if (o instanceof Object[]) {
@@ -759,10 +1411,17 @@ public class BinaryWireFormat implements WireFormat {
     public static class Builder extends VanillaResource implements ObjectBuilder<WireFormat> {
 
         private final MetaClasses _metaClasses;
+        // shared so each class is only worked out once for all connections.
+        private final PojoSerializer _serializer;
+        private final ConcurrentMap<Class<?>, ClassKind> _writeKinds = new ConcurrentHashMap<Class<?>, ClassKind>();
+        private final SerializerRegistry _serializers = new SerializerRegistry();
+        private boolean _compactStrings = true;
+        private StringCache _stringCache = null;
 
         public Builder(String name, MetaClasses metaclasses) {
             super(name);
             _metaClasses = metaclasses;
+            _serializer = new VanillaPojoSerializer(metaclasses);
         }
 
         protected void finalize() throws Throwable {
@@ -774,9 +1433,38 @@ public class BinaryWireFormat implements WireFormat {
             }
         }
 
+        /**
+         * @return the TypeSerializers of the wire formats created, registered before they
+         *         connect.
+         */
+        public SerializerRegistry getSerializers() {
+            return _serializers;
+        }
+
+        /**
+         * Sets whether the connections of the wire formats created offer COMPACT_STRINGS.
+         */
+        public void setCompactStrings(boolean compactStrings) {
+            _compactStrings = compactStrings;
+        }
+
+        /**
+         * Sets the StringCache shared by the wire formats created, or null for none.
+         */
+        public void setStringCache(StringCache stringCache) {
+            _stringCache = stringCache;
+        }
+
+        public StringCache getStringCache() {
+            return _stringCache;
+        }
+
         public WireFormat create() {
             checkedClosed();
-            return new BinaryWireFormat(_metaClasses);
+            BinaryWireFormat wf = new BinaryWireFormat(_metaClasses, _serializer, _serializers, _writeKinds);
+            wf.setCompactStrings(_compactStrings);
+            wf.setStringCache(_stringCache);
+            return wf;
         }
     }
 
@@ -802,5 +1490,24 @@ public class BinaryWireFormat implements WireFormat {
             _value = value;
             return prev;
         }
+
+        // as defined by Map.Entry so entries compare equal to those of any Map.
+        public int hashCode() {
+            return (_key == null ? 0 : _key.hashCode()) ^ (_value == null ? 0 : _value.hashCode());
+        }
+
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry<?, ?>)) {
+                return false;
+            }
+
+            Entry<?, ?> e = (Entry<?, ?>)obj;
+            return (_key == null ? e.getKey() == null : _key.equals(e.getKey()))
+                   && (_value == null ? e.getValue() == null : _value.equals(e.getValue()));
+        }
+
+        public String toString() {
+            return _key + "=" + _value;
+        }
     }
 }
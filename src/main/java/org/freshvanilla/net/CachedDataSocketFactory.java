@@ -16,24 +16,42 @@
 
 package org.freshvanilla.net;
 
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import org.freshvanilla.lang.MetaClasses;
 import org.freshvanilla.lang.misc.Unsafe;
 import org.freshvanilla.utils.Factory;
 import org.freshvanilla.utils.VanillaResource;
 
+/**
+ * Keeps up to getMaximumConnections() DataSockets open per description. Free sockets are
+ * kept on a lock-free list. When all of them are in use, callers park and are handed the
+ * next socket recycled, or the right to open a new one, in the order they started waiting.
+ */
 public class CachedDataSocketFactory extends VanillaResource implements Factory<String, DataSocket> {
 
+    // handed to a waiter which may open a new connection, a slot having been reserved for it.
+    static final Object PERMIT = new Object();
+    static final Object CANCELLED = new Object();
+    static final Object CLOSED = new Object();
+
     private final ConcurrentMap<String, DataSockets> _dataSocketsMap = new ConcurrentHashMap<String, DataSockets>();
     private final Factory<String, DataSocket> _dataSocketBuilder;
-    private int _maximumConnections = 4;
+    private volatile int _maximumConnections = 4;
+    private volatile long _acquireTimeoutMillis = Long.MAX_VALUE;
+
+    private final AtomicLong _waits = new AtomicLong();
+    private final AtomicLong _timeouts = new AtomicLong();
+    private final AtomicLong _creations = new AtomicLong();
 
     public CachedDataSocketFactory(String name, String connectionString, MetaClasses metaClasses) {
         this(name, connectionString, Long.MAX_VALUE, metaClasses);
@@ -59,61 +77,109 @@ public class CachedDataSocketFactory extends VanillaResource implements Factory<
         _maximumConnections = maximumConnections;
     }
 
-    public DataSocket acquire(String description) throws InterruptedException {
+    public long getAcquireTimeoutMillis() {
+        return _acquireTimeoutMillis;
+    }
+
+    /**
+     * @param acquireTimeoutMillis how long acquire() waits for a connection when all of them
+     *            are in use before throwing a TimeoutException. Long.MAX_VALUE, the default,
+     *            waits forever.
+     */
+    public void setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+        _acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    /**
+     * @return the number of times acquire() had to wait for a connection.
+     */
+    public long getWaitCount() {
+        return _waits.get();
+    }
+
+    /**
+     * @return the number of times acquire() gave up waiting for a connection.
+     */
+    public long getTimeoutCount() {
+        return _timeouts.get();
+    }
+
+    /**
+     * @return the number of connections opened.
+     */
+    public long getCreationCount() {
+        return _creations.get();
+    }
+
+    public DataSocket acquire(String description) throws InterruptedException, TimeoutException {
         checkedClosed();
         DataSockets dataSockets = _dataSocketsMap.get(description);
         if (dataSockets == null) {
-            _dataSocketsMap.putIfAbsent(description, new DataSockets(_maximumConnections));
+            _dataSocketsMap.putIfAbsent(description, new DataSockets());
             dataSockets = _dataSocketsMap.get(description);
         }
         DataSocket ds = acquire0(dataSockets, description);
-        synchronized (dataSockets.used) {
-            dataSockets.used.add(ds);
-        }
+        dataSockets.used.put(ds, Boolean.TRUE);
         return ds;
     }
 
-    private DataSocket acquire0(DataSockets dataSockets, String description) throws InterruptedException {
+    private DataSocket acquire0(DataSockets dataSockets, String description)
+        throws InterruptedException, TimeoutException {
         // is there one free?
-        DataSocket ds = dataSockets.free.poll();
+        DataSocket ds = dataSockets.pollFree();
         if (ds != null) {
             return ds;
         }
 
-        // otherwise we might have to make one.
-        if (!dataSockets.used.isEmpty()) {
-            Thread.yield();
-            // see if it was freed.
-            ds = dataSockets.free.poll();
-            if (ds != null) {
-                return ds;
-            }
+        // otherwise we might be able to make one.
+        if (dataSockets.reserve()) {
+            return create(dataSockets, description);
         }
 
-        // should not go over the maximum.
-        int count = 1;
-        while (dataSockets.used.size() >= _maximumConnections) {
-            Thread.sleep(1);
-            // see if it was freed.
-            ds = dataSockets.free.poll();
-            if (ds != null) {
-                if (count >= 1) {
-                    getLog().debug(getName() + ": got a connection after " + count);
-                }
+        // wait in line, checking again once queued as a socket recycled just before then
+        // would not have been handed to us.
+        Waiter waiter = new Waiter();
+        dataSockets.waiters.add(waiter);
+        // once in line, so a caller seeing the count knows who is ahead of it.
+        _waits.incrementAndGet();
+
+        ds = dataSockets.pollFree();
+        if (ds != null) {
+            if (waiter.cancel()) {
                 return ds;
             }
-            count++;
+            dataSockets.release(ds);
+        }
+        else if (dataSockets.reserve()) {
+            if (waiter.cancel()) {
+                return create(dataSockets, description);
+            }
+            dataSockets.releasePermit();
         }
 
-        // there is a race condition where this could appear less than the actual number.
-        if (dataSockets.free.size() + dataSockets.used.size() >= _maximumConnections) {
-            return dataSockets.free.take();
+        Object handed = waiter.await(_acquireTimeoutMillis);
+        if (handed == null) {
+            _timeouts.incrementAndGet();
+            throw new TimeoutException(getName() + ": no connection to " + description + " free after "
+                                       + _acquireTimeoutMillis + " ms");
+        }
+        if (handed == PERMIT) {
+            return create(dataSockets, description);
+        }
+        if (handed == CLOSED) {
+            checkedClosed();
         }
+        return (DataSocket)handed;
+    }
 
+    private DataSocket create(DataSockets dataSockets, String description) {
         try {
-            return _dataSocketBuilder.acquire(description);
+            DataSocket ds = _dataSocketBuilder.acquire(description);
+            _creations.incrementAndGet();
+            return ds;
         }
         catch (Exception e) {
+            dataSockets.releasePermit();
             throw Unsafe.rethrow(e);
         }
     }
@@ -122,66 +188,160 @@ public class CachedDataSocketFactory extends VanillaResource implements Factory<
         if (dataSocket == null) {
             return;
         }
+        if (dataSocket instanceof AbstractDataSocket) {
+            // the caller is done with the reply it read.
+            ((AbstractDataSocket)dataSocket).doneReading();
+        }
 
         DataSockets dataSockets = _dataSocketsMap.get(dataSocket.getName());
-        if (dataSockets == null) {
+        if (dataSockets == null || dataSockets.used.remove(dataSocket) == null) {
             getLog().warn(getName() + ": unexpected recycled object " + dataSocket);
             dataSocket.close();
             return;
         }
 
-        synchronized (dataSockets.used) {
-            dataSockets.used.remove(dataSocket);
+        if (isClosed() || dataSocket.isClosed()) {
+            dataSocket.close();
+            dataSockets.releasePermit();
+        }
+        else {
+            dataSockets.release(dataSocket);
         }
+    }
 
-        if (isClosed()) {
-            dataSocket.close();
+    public void close() {
+        super.close();
+
+        for (DataSockets dataSockets : _dataSocketsMap.values()) {
+            dataSockets.close();
         }
-        else if (!dataSocket.isClosed()) {
-            try {
-                if (dataSockets.free.offer(dataSocket, 2, TimeUnit.MILLISECONDS)) {
-                    dataSocket = null;
+
+        _dataSocketsMap.clear();
+    }
+
+    class DataSockets {
+        final Queue<DataSocket> free = new ConcurrentLinkedQueue<DataSocket>();
+        final ConcurrentMap<DataSocket, Boolean> used = new ConcurrentHashMap<DataSocket, Boolean>();
+        final Queue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+        // connections open or being opened.
+        final AtomicInteger count = new AtomicInteger();
+
+        boolean reserve() {
+            while (true) {
+                int n = count.get();
+                if (n >= _maximumConnections) {
+                    return false;
                 }
-                else {
-                    getLog().debug(getName() + ": closing as over maximum connections " + dataSocket);
+                if (count.compareAndSet(n, n + 1)) {
+                    return true;
                 }
             }
-            catch (InterruptedException ignored) {
-                Thread.currentThread().interrupt();
+        }
+
+        DataSocket pollFree() {
+            DataSocket ds;
+            while ((ds = free.poll()) != null) {
+                if (!ds.isClosed()) {
+                    return ds;
+                }
+                releasePermit();
             }
-            finally {
-                if (dataSocket != null) {
-                    dataSocket.close();
+            return null;
+        }
+
+        // hands a socket to the longest waiter, or puts it on the free list if there is none.
+        void release(DataSocket ds) {
+            do {
+                Waiter waiter;
+                while ((waiter = waiters.poll()) != null) {
+                    if (waiter.offer(ds)) {
+                        return;
+                    }
                 }
+                free.add(ds);
+                // a caller which queued after the poll above may have missed it.
             }
+            while (!waiters.isEmpty() && (ds = free.poll()) != null);
         }
-    }
 
-    public void close() {
-        super.close();
+        // gives up the slot of a connection which has been closed or never opened.
+        void releasePermit() {
+            do {
+                Waiter waiter;
+                while ((waiter = waiters.poll()) != null) {
+                    if (waiter.offer(PERMIT)) {
+                        return;
+                    }
+                }
+                count.decrementAndGet();
+                // a caller which queued after the poll above may have missed the free slot.
+            }
+            while (!waiters.isEmpty() && reserve());
+        }
 
-        for (DataSockets dataSockets : _dataSocketsMap.values()) {
-            for (DataSocket socket : dataSockets.free) {
+        void close() {
+            Waiter waiter;
+            while ((waiter = waiters.poll()) != null) {
+                waiter.offer(CLOSED);
+            }
+
+            DataSocket ds;
+            while ((ds = free.poll()) != null) {
+                ds.close();
+            }
+
+            for (DataSocket socket : used.keySet()) {
                 socket.close();
             }
+        }
+    }
 
-            synchronized (dataSockets.used) {
-                for (DataSocket socket : dataSockets.used) {
-                    socket.close();
-                }
+    // A caller parked until it is handed a socket, a PERMIT or CLOSED.
+    static class Waiter {
+        private final Thread _thread = Thread.currentThread();
+        private final AtomicReference<Object> _handed = new AtomicReference<Object>();
+
+        boolean offer(Object handed) {
+            if (_handed.compareAndSet(null, handed)) {
+                LockSupport.unpark(_thread);
+                return true;
             }
+            return false;
         }
 
-        _dataSocketsMap.clear();
-    }
+        boolean cancel() {
+            return _handed.compareAndSet(null, CANCELLED);
+        }
+
+        // @return what was handed to this waiter or null if it timed out.
+        Object await(long timeoutMillis) throws InterruptedException {
+            long deadline = timeoutMillis == Long.MAX_VALUE ? 0 : System.nanoTime()
+                                                                    + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (true) {
+                Object handed = _handed.get();
+                if (handed != null) {
+                    return handed;
+                }
 
-    static class DataSockets {
-        final BlockingQueue<DataSocket> free;
-        final Set<DataSocket> used;
+                if (Thread.interrupted()) {
+                    if (cancel()) {
+                        throw new InterruptedException();
+                    }
+                    Thread.currentThread().interrupt();
+                    return _handed.get();
+                }
 
-        DataSockets(int maximumConnections) {
-            free = new ArrayBlockingQueue<DataSocket>(maximumConnections + 1);
-            used = new HashSet<DataSocket>(maximumConnections);
+                if (deadline == 0) {
+                    LockSupport.park();
+                }
+                else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return cancel() ? null : _handed.get();
+                    }
+                    LockSupport.parkNanos(remaining);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,182 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.freshvanilla.utils.Callback;
+
+/**
+ * The callbacks waiting for replies, by sequence number. The table is open addressed with
+ * linear probing, so adding and removing a callback allocates nothing once the table is
+ * large enough. Each callback can have a deadline after which expire() removes it.
+ */
+class CallbackTable {
+
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] _keys = new long[INITIAL_CAPACITY];
+    private long[] _deadlines = new long[INITIAL_CAPACITY];
+    // a slot is empty when its callback is null.
+    private Callback<?>[] _callbacks = new Callback<?>[INITIAL_CAPACITY];
+    private int _size = 0;
+    // no callback has an earlier deadline, so there is nothing to expire before then.
+    private long _nextDeadline = NO_DEADLINE;
+
+    private static int hash(long key) {
+        int h = (int)(key ^ (key >>> 32)) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    synchronized void put(long key, Callback<?> callback, long deadline) {
+        if (_size * 2 >= _callbacks.length) {
+            resize(_callbacks.length * 2);
+        }
+
+        final int mask = _callbacks.length - 1;
+        int i = hash(key) & mask;
+        while (_callbacks[i] != null && _keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+
+        if (_callbacks[i] == null) {
+            _size++;
+        }
+        _keys[i] = key;
+        _deadlines[i] = deadline;
+        _callbacks[i] = callback;
+
+        if (deadline < _nextDeadline) {
+            _nextDeadline = deadline;
+        }
+    }
+
+    synchronized Callback<?> remove(long key) {
+        final int mask = _callbacks.length - 1;
+        int i = hash(key) & mask;
+        Callback<?> callback;
+        while ((callback = _callbacks[i]) != null) {
+            if (_keys[i] == key) {
+                delete(i);
+                return callback;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    synchronized int size() {
+        return _size;
+    }
+
+    /**
+     * Removes the callbacks whose deadline is before the given time.
+     *
+     * @return the callbacks removed, or null if there were none.
+     */
+    synchronized List<Callback<?>> expire(long timeMillis) {
+        if (timeMillis < _nextDeadline) {
+            return null;
+        }
+
+        List<Callback<?>> expired = null;
+        long nextDeadline = NO_DEADLINE;
+        int i = 0;
+        while (i < _callbacks.length) {
+            if (_callbacks[i] != null && _deadlines[i] <= timeMillis) {
+                if (expired == null) {
+                    expired = new ArrayList<Callback<?>>();
+                }
+                expired.add(_callbacks[i]);
+                // a later entry may be moved into this slot, so look at it again.
+                delete(i);
+                continue;
+            }
+            if (_callbacks[i] != null && _deadlines[i] < nextDeadline) {
+                nextDeadline = _deadlines[i];
+            }
+            i++;
+        }
+        _nextDeadline = nextDeadline;
+        return expired;
+    }
+
+    synchronized List<Callback<?>> removeAll() {
+        List<Callback<?>> removed = new ArrayList<Callback<?>>(_size);
+        for (int i = 0; i < _callbacks.length; i++) {
+            if (_callbacks[i] != null) {
+                removed.add(_callbacks[i]);
+                _callbacks[i] = null;
+            }
+        }
+        _size = 0;
+        _nextDeadline = NO_DEADLINE;
+        return removed;
+    }
+
+    // empties slot i, moving back any entry after it which would otherwise no longer be found.
+    private void delete(int i) {
+        final int mask = _callbacks.length - 1;
+        int hole = i;
+        int j = i;
+
+        while (true) {
+            j = (j + 1) & mask;
+            if (_callbacks[j] == null) {
+                break;
+            }
+
+            int home = hash(_keys[j]) & mask;
+            // move j into the hole unless its home slot is cyclically after the hole.
+            if (hole <= j ? (home <= hole || home > j) : (home <= hole && home > j)) {
+                _keys[hole] = _keys[j];
+                _deadlines[hole] = _deadlines[j];
+                _callbacks[hole] = _callbacks[j];
+                hole = j;
+            }
+        }
+
+        _callbacks[hole] = null;
+        _size--;
+    }
+
+    private void resize(int capacity) {
+        long[] keys = _keys;
+        long[] deadlines = _deadlines;
+        Callback<?>[] callbacks = _callbacks;
+
+        _keys = new long[capacity];
+        _deadlines = new long[capacity];
+        _callbacks = new Callback<?>[capacity];
+
+        final int mask = capacity - 1;
+        for (int i = 0; i < callbacks.length; i++) {
+            if (callbacks[i] != null) {
+                int j = hash(keys[i]) & mask;
+                while (_callbacks[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                _keys[j] = keys[i];
+                _deadlines[j] = deadlines[i];
+                _callbacks[j] = callbacks[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.io.IOException;
+
+/**
+ * Where a WireFormat sends a full write buffer when a message doesn't fit in it. The buffer
+ * is sent as one chunk of the message and cleared for the rest of it.
+ */
+interface ChunkedOutput {
+
+    public void flushChunk() throws IOException;
+}
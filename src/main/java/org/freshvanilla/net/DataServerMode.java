@@ -0,0 +1,40 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+/**
+ * How a VanillaDataServerSocket serves its connections. All modes use the same wire
+ * protocol so clients don't need to know which one a server runs.
+ */
+public enum DataServerMode {
+    /** Each connection is read by its own thread with blocking reads. */
+    THREAD_PER_CONNECTION,
+
+    /**
+     * Connections are shared between a small number of non-blocking Selector event loops.
+     * Messages are handled on the loop which read them, so without an Executor to run them on
+     * a slow provider method stalls every connection on its loop, and one calling back into
+     * the same server can deadlock it.
+     */
+    SELECTOR,
+
+    /**
+     * As THREAD_PER_CONNECTION but each connection is read by a virtual thread. JVMs without
+     * virtual threads fall back to THREAD_PER_CONNECTION.
+     */
+    VIRTUAL_THREAD
+}
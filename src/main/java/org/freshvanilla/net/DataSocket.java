@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import org.freshvanilla.utils.Callback;
 import org.freshvanilla.utils.SimpleResource;
@@ -37,13 +38,57 @@ public interface DataSocket extends SimpleResource {
 
     public void flush() throws IOException;
 
+    /**
+     * Locks the socket while a message is written and flushed. The message may be held back
+     * and written with those of the threads waiting for the lock if WriteCoalescing is set.
+     */
+    public void lockWrite();
+
+    /**
+     * Writes any messages held back, unless a thread waiting for the lock will. Closes the
+     * socket instead if a message was sent in part, as when writing it failed after its
+     * first chunks were sent.
+     */
+    public void unlockWrite() throws IOException;
+
+    public void setWriteCoalescing(WriteCoalescing coalescing);
+
+    public WriteCoalescing getWriteCoalescing();
+
     public void addCallback(long sequenceNumber, Callback<?> callback);
 
+    /**
+     * Adds a callback which fails with a TimeoutException if its reply hasn't been read
+     * within about timeoutMillis. Overdue callbacks are checked for once a second.
+     */
+    public void addCallback(long sequenceNumber, Callback<?> callback, long timeoutMillis);
+
     public Callback<?> removeCallback(long sequenceNumber);
 
+    /**
+     * Starts a thread calling the reader for each message received. Only the first reader
+     * set is used.
+     */
     public void setReader(Callback<DataSocket> reader);
 
+    public boolean hasReader();
+
+    /**
+     * @return runs callbacks in order off the thread calling the reader, so a slow callback
+     *         doesn't hold up reading the replies after it.
+     * @throws IllegalStateException if no reader has been set.
+     */
+    public Executor callbackExecutor();
+
     public Map<String, Object> getOtherHeader();
 
+    /**
+     * @return what a user of this socket attached to it, e.g. state derived from the other
+     *         header so it isn't derived again for every message, or null.
+     */
+    public Object getAttachment();
+
+    public void setAttachment(Object attachment);
+
     public void timedCheck(long timeMS);
 }
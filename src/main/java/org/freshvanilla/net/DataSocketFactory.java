@@ -22,23 +22,29 @@ import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.freshvanilla.lang.MetaClasses;
-import org.freshvanilla.lang.ObjectBuilder;
 import org.freshvanilla.utils.Factory;
 import org.freshvanilla.utils.VanillaResource;
 
 public class DataSocketFactory extends VanillaResource implements Factory<String, DataSocket> {
 
     public static final int DEFAULT_MAXIMUM_MESSAGE_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAXIMUM_ASSEMBLED_SIZE = 64 * 1024 * 1024;
 
     private final InetSocketAddress[] _addresses;
-    private final ObjectBuilder<WireFormat> _wireFormatBuilder;
+    private final BinaryWireFormat.Builder _wireFormatBuilder;
     private final Map<String, Object> _header = new LinkedHashMap<String, Object>();
     private final long _timeoutMillis;
 
     private int _lastAddress = 0;
     private int _maximumMessageSize = DEFAULT_MAXIMUM_MESSAGE_SIZE;
+    private int _maximumAssembledSize = DEFAULT_MAXIMUM_ASSEMBLED_SIZE;
+    private DirectBufferPool _bufferPool = DirectBufferPool.getDefault();
+    // runs the readers of all the sockets made, created when first needed. Its idle threads
+    // end by themselves, so it isn't shut down while the sockets may still be in use.
+    private ExecutorService _readerExecutor = null;
 
     public DataSocketFactory(String name, String connectionString, long timeoutMS, MetaClasses metaClasses) {
         super(name);
@@ -59,6 +65,61 @@ public class DataSocketFactory extends VanillaResource implements Factory<String
         _maximumMessageSize = maximumMessageSize;
     }
 
+    public int getMaximumAssembledSize() {
+        return _maximumAssembledSize;
+    }
+
+    /**
+     * Sets the size a message sent in chunks can grow to before the socket reading it fails,
+     * for the sockets made from now on.
+     */
+    public void setMaximumAssembledSize(int maximumAssembledSize) {
+        _maximumAssembledSize = maximumAssembledSize;
+    }
+
+    /**
+     * @return the TypeSerializers of the sockets made, which have to be registered before
+     *         the first is made.
+     */
+    public SerializerRegistry getSerializers() {
+        return _wireFormatBuilder.getSerializers();
+    }
+
+    public StringCache getStringCache() {
+        return _wireFormatBuilder.getStringCache();
+    }
+
+    /**
+     * Sets the StringCache shared by the sockets made from now on, so the strings they read
+     * over and over are the same instances, or null for none.
+     */
+    public void setStringCache(StringCache stringCache) {
+        _wireFormatBuilder.setStringCache(stringCache);
+    }
+
+    public DirectBufferPool getBufferPool() {
+        return _bufferPool;
+    }
+
+    public void setBufferPool(DirectBufferPool bufferPool) {
+        _bufferPool = bufferPool;
+    }
+
+    public synchronized ExecutorService getReaderExecutor() {
+        if (_readerExecutor == null) {
+            _readerExecutor = VanillaDataSocket.newReaderExecutor(getName());
+        }
+        return _readerExecutor;
+    }
+
+    /**
+     * @param readerExecutor runs the threads reading replies to async calls, one per socket
+     *            in use, and the callbacks they dispatch.
+     */
+    public synchronized void setReaderExecutor(ExecutorService readerExecutor) {
+        _readerExecutor = readerExecutor;
+    }
+
     private static InetSocketAddress[] parseConnectionString(String connectionString) {
         String[] parts = connectionString.split(",");
         InetSocketAddress[] addresses = new InetSocketAddress[parts.length];
@@ -98,7 +159,10 @@ public class DataSocketFactory extends VanillaResource implements Factory<String
             try {
                 final InetSocketAddress remote = _addresses[_lastAddress];
                 SocketChannel channel = SocketChannel.open(remote);
-                return new VanillaDataSocket(name, remote, channel, wireFormat, header, _maximumMessageSize);
+                VanillaDataSocket ds = new VanillaDataSocket(name, remote, channel, wireFormat, header,
+                    _maximumMessageSize, _bufferPool, getReaderExecutor());
+                ds.setMaximumAssembledSize(_maximumAssembledSize);
+                return ds;
             }
             catch (IOException e) {
                 if (Thread.currentThread().isInterrupted()) {
@@ -130,6 +194,10 @@ public class DataSocketFactory extends VanillaResource implements Factory<String
     }
 
     public void recycle(DataSocket dataSocket) {
+        if (dataSocket instanceof AbstractDataSocket) {
+            // so closing it can release its read buffers.
+            ((AbstractDataSocket)dataSocket).doneReading();
+        }
         dataSocket.close();
     }
 
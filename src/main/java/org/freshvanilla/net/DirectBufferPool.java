@@ -0,0 +1,151 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct buffers shared by DataSockets, so connections which come and go reuse
+ * the same off-heap memory instead of waiting for the GC to free it. Buffers come in
+ * power of two size classes; those smaller than a slab are cut from one direct allocation.
+ * <p>
+ * A buffer is handed out again as soon as it is released, so it must only be released once
+ * no thread can use it; DataSockets release theirs under the write lock and from the thread
+ * reading. Released buffers beyond maximumFreeBytes are left to the GC.
+ */
+public class DirectBufferPool {
+
+    public static final long DEFAULT_MAXIMUM_FREE_BYTES = 64L * 1024 * 1024;
+
+    static final int MIN_SIZE_SHIFT = 12;
+    static final int SLAB_SIZE = 1024 * 1024;
+
+    private static final DirectBufferPool DEFAULT = new DirectBufferPool(DEFAULT_MAXIMUM_FREE_BYTES);
+
+    private final SizeClass[] _sizeClasses = new SizeClass[31 - MIN_SIZE_SHIFT];
+    private final long _maximumFreeBytes;
+    private final AtomicLong _bytesInUse = new AtomicLong();
+    private final AtomicLong _bytesFree = new AtomicLong();
+
+    public DirectBufferPool(long maximumFreeBytes) {
+        _maximumFreeBytes = maximumFreeBytes;
+        for (int i = 0; i < _sizeClasses.length; i++) {
+            _sizeClasses[i] = new SizeClass(1 << (i + MIN_SIZE_SHIFT));
+        }
+    }
+
+    /**
+     * @return the pool used unless a DataSocketFactory or server is given another one.
+     */
+    public static DirectBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return a cleared buffer with a capacity of at least size bytes.
+     */
+    public ByteBuffer acquire(int size) {
+        final SizeClass sizeClass = sizeClassFor(size);
+        ByteBuffer buffer = sizeClass.poll();
+
+        if (buffer == null) {
+            buffer = sizeClass.allocate();
+        }
+        else {
+            _bytesFree.addAndGet(-sizeClass._size);
+        }
+
+        _bytesInUse.addAndGet(sizeClass._size);
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer from acquire(), which mustn't be used afterwards.
+     */
+    public void release(ByteBuffer buffer) {
+        final SizeClass sizeClass = sizeClassFor(buffer.capacity());
+        _bytesInUse.addAndGet(-sizeClass._size);
+
+        if (_bytesFree.get() + sizeClass._size > _maximumFreeBytes) {
+            return;
+        }
+
+        _bytesFree.addAndGet(sizeClass._size);
+        sizeClass.add(buffer);
+    }
+
+    public long getBytesInUse() {
+        return _bytesInUse.get();
+    }
+
+    /**
+     * @return the bytes held by the pool for reuse, including those cut from slabs but not
+     *         used yet.
+     */
+    public long getBytesFree() {
+        return _bytesFree.get();
+    }
+
+    private SizeClass sizeClassFor(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid buffer size " + size);
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return _sizeClasses[shift <= MIN_SIZE_SHIFT ? 0 : shift - MIN_SIZE_SHIFT];
+    }
+
+    class SizeClass {
+        private final int _size;
+        // the free buffers, the most recently released last.
+        private final LinkedList<ByteBuffer> _free = new LinkedList<ByteBuffer>();
+
+        SizeClass(int size) {
+            _size = size;
+        }
+
+        synchronized ByteBuffer poll() {
+            return _free.isEmpty() ? null : _free.removeLast();
+        }
+
+        synchronized void add(ByteBuffer buffer) {
+            _free.addLast(buffer);
+        }
+
+        ByteBuffer allocate() {
+            if (_size >= SLAB_SIZE) {
+                return ByteBuffer.allocateDirect(_size);
+            }
+
+            // cut a slab into buffers of this size and keep all but the first.
+            final ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            final ByteBuffer first = slice(slab, 0);
+            for (int position = _size; position < SLAB_SIZE; position += _size) {
+                _bytesFree.addAndGet(_size);
+                add(slice(slab, position));
+            }
+            return first;
+        }
+
+        private ByteBuffer slice(ByteBuffer slab, int position) {
+            slab.limit(position + _size).position(position);
+            return slab.slice();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+
+import org.freshvanilla.lang.MetaClass;
+import org.freshvanilla.lang.MetaField;
+import org.freshvanilla.utils.Classes;
+
+/**
+ * Reads and writes the fields of one MetaClass. The type of each field is looked at once,
+ * when the codec is built, so each field is then read and written by a FieldCodec which
+ * only knows how to handle its type. The bytes are the same as those of
+ * WireFormat.readField()/writeField().
+ */
+class PojoCodec<Pojo> {
+
+    private final MetaClass<Pojo> _metaClass;
+    private final FieldCodec<Pojo>[] _fieldCodecs;
+
+    @SuppressWarnings("unchecked")
+    PojoCodec(MetaClass<Pojo> metaClass) throws NotSerializableException {
+        _metaClass = metaClass;
+
+        MetaField<Pojo, ?>[] fields = metaClass.fields();
+        _fieldCodecs = (FieldCodec<Pojo>[])new FieldCodec<?>[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            _fieldCodecs[i] = fieldCodec(fields[i]);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <Pojo> FieldCodec<Pojo> fieldCodec(MetaField<Pojo, ?> field) throws NotSerializableException {
+        final Class<?> type = field.getType();
+
+        if (!field.isPrimitive()) {
+            // a field of a VirtualClass which the local class doesn't have.
+            if (type == Void.class) {
+                return new SkipFieldCodec<Pojo>();
+            }
+            return new ObjectFieldCodec(field);
+        }
+
+        if (type == boolean.class) {
+            return new BooleanFieldCodec<Pojo>(field);
+        }
+
+        if (type == byte.class || type == char.class || type == short.class || type == int.class
+            || type == long.class) {
+            return new NumFieldCodec<Pojo>(field);
+        }
+
+        if (type == float.class || type == double.class) {
+            return new DoubleFieldCodec<Pojo>(field);
+        }
+
+        throw new NotSerializableException("Unknown primitive type " + type);
+    }
+
+    MetaClass<Pojo> getMetaClass() {
+        return _metaClass;
+    }
+
+    void write(ByteBuffer wb, WireFormat wf, Pojo pojo) throws IOException {
+        final FieldCodec<Pojo>[] fieldCodecs = _fieldCodecs;
+        for (int i = 0; i < fieldCodecs.length; i++) {
+            fieldCodecs[i].write(wb, wf, pojo);
+        }
+    }
+
+    void read(ByteBuffer rb, WireFormat wf, Pojo pojo) throws ClassNotFoundException, IOException {
+        final FieldCodec<Pojo>[] fieldCodecs = _fieldCodecs;
+        for (int i = 0; i < fieldCodecs.length; i++) {
+            fieldCodecs[i].read(rb, wf, pojo);
+        }
+    }
+
+    abstract static class FieldCodec<Pojo> {
+        abstract void write(ByteBuffer wb, WireFormat wf, Pojo pojo) throws IOException;
+
+        abstract void read(ByteBuffer rb, WireFormat wf, Pojo pojo) throws ClassNotFoundException, IOException;
+    }
+
+    static class BooleanFieldCodec<Pojo> extends FieldCodec<Pojo> {
+        private final MetaField<Pojo, ?> _field;
+
+        BooleanFieldCodec(MetaField<Pojo, ?> field) {
+            _field = field;
+        }
+
+        void write(ByteBuffer wb, WireFormat wf, Pojo pojo) {
+            wf.writeBoolean(wb, _field.getBoolean(pojo));
+        }
+
+        void read(ByteBuffer rb, WireFormat wf, Pojo pojo) throws IOException {
+            _field.setBoolean(pojo, wf.readBoolean(rb));
+        }
+    }
+
+    static class NumFieldCodec<Pojo> extends FieldCodec<Pojo> {
+        private final MetaField<Pojo, ?> _field;
+
+        NumFieldCodec(MetaField<Pojo, ?> field) {
+            _field = field;
+        }
+
+        void write(ByteBuffer wb, WireFormat wf, Pojo pojo) {
+            wf.writeNum(wb, _field.getNum(pojo));
+        }
+
+        void read(ByteBuffer rb, WireFormat wf, Pojo pojo) throws IOException {
+            _field.setNum(pojo, wf.readNum(rb));
+        }
+    }
+
+    static class DoubleFieldCodec<Pojo> extends FieldCodec<Pojo> {
+        private final MetaField<Pojo, ?> _field;
+
+        DoubleFieldCodec(MetaField<Pojo, ?> field) {
+            _field = field;
+        }
+
+        // float fields too, as they are read and written as doubles.
+        void write(ByteBuffer wb, WireFormat wf, Pojo pojo) {
+            wf.writeDouble(wb, _field.getDouble(pojo));
+        }
+
+        void read(ByteBuffer rb, WireFormat wf, Pojo pojo) throws IOException {
+            _field.setDouble(pojo, wf.readDouble(rb));
+        }
+    }
+
+    static class ObjectFieldCodec<Pojo, T> extends FieldCodec<Pojo> {
+        private final MetaField<Pojo, T> _field;
+        private final Class<T> _type;
+
+        ObjectFieldCodec(MetaField<Pojo, T> field) {
+            _field = field;
+            _type = field.getType();
+        }
+
+        void write(ByteBuffer wb, WireFormat wf, Pojo pojo) throws IOException {
+            Object object = _field.get(pojo);
+            if (object == pojo) object = null;
+            wf.writeObject(wb, object);
+        }
+
+        @SuppressWarnings("unchecked")
+        void read(ByteBuffer rb, WireFormat wf, Pojo pojo) throws ClassNotFoundException, IOException {
+            T value = (T)wf.readObject(rb);
+            if (!(value == null || _type.isInstance(value))) {
+                value = Classes.parseAs(value, _type);
+            }
+            _field.set(pojo, value);
+        }
+    }
+
+    // reads and drops a value sent for a field the local class doesn't have.
+    static class SkipFieldCodec<Pojo> extends FieldCodec<Pojo> {
+        void write(ByteBuffer wb, WireFormat wf, Pojo pojo) throws IOException {
+            wf.writeObject(wb, null);
+        }
+
+        void read(ByteBuffer rb, WireFormat wf, Pojo pojo) throws ClassNotFoundException, IOException {
+            wf.readObject(rb);
+        }
+    }
+}
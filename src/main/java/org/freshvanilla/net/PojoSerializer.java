@@ -21,6 +21,10 @@ import java.nio.ByteBuffer;
 
 public interface PojoSerializer {
 
+    /**
+     * BinaryWireFormat asks this for the first object of each class it writes and uses the
+     * answer for all objects of that class.
+     */
     public <Pojo> boolean canSerialize(Pojo pojo);
 
     public <Pojo> void serialize(ByteBuffer wb, WireFormat wf, Pojo pojo) throws IOException;
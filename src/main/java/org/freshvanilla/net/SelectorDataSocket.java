@@ -0,0 +1,398 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.freshvanilla.utils.Callback;
+import org.freshvanilla.utils.Factory;
+
+/**
+ * The server side of a connection served by a SelectorLoop. Frames are read into a
+ * per-connection buffer without blocking and each complete frame is passed to the
+ * DataSocketHandler, for which read() returns that frame. Writes which the channel cannot
+ * take straight away are queued and completed when the channel becomes writable.
+ */
+class SelectorDataSocket extends AbstractDataSocket {
+
+    private static final long TIMEOUT_MS = 10 * 1000L;
+
+    private final SocketChannel _channel;
+    private final SelectorLoop _loop;
+    private final Factory<DataSocket, DataSocketHandler> _factory;
+    private final Object _pendingLock = new Object();
+    private final Runnable _writeInterest = new Runnable() {
+        public void run() {
+            updateInterest();
+        }
+    };
+
+    private SelectionKey _key = null;
+    private DataSocketHandler _handler = null;
+    // grown for frames larger than a chunk, from peers which don't send chunks.
+    private ByteBuffer _readBuffer;
+    private final int _chunkSize;
+    private int _largeFrame = 0;
+    private ByteBuffer _message = null;
+    private boolean _inFrame = false;
+    private int _nextFrame = 0;
+    private int _dataEnd = 0;
+    // whether another whole frame follows the one being handled.
+    private boolean _frameBuffered = false;
+    private boolean _disconnected = false;
+
+    // guarded by _pendingLock
+    private ByteBuffer _pending = null;
+    private long _pendingSinceMillis = 0;
+
+    SelectorDataSocket(String name,
+                       SocketChannel channel,
+                       SelectorLoop loop,
+                       WireFormat wireFormat,
+                       Map<String, Object> header,
+                       int maximumMessageSize,
+                       DirectBufferPool bufferPool,
+                       Factory<DataSocket, DataSocketHandler> factory) throws IOException {
+        super(name, null, wireFormat, maximumMessageSize, bufferPool);
+        _channel = channel;
+        _loop = loop;
+        _factory = factory;
+        channel.configureBlocking(false);
+        configureSocket(channel.socket());
+
+        _chunkSize = chunkSize(maximumMessageSize);
+        _readBuffer = acquireBuffer(_chunkSize);
+        getLog().debug(name + ": accepted " + channel.socket());
+        DataSockets.registerDataSocket(this);
+
+        try {
+            writeHeader(header);
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    void register(Selector selector) throws ClosedChannelException {
+        synchronized (_pendingLock) {
+            _key = _channel.register(selector, interestOps(), this);
+        }
+    }
+
+    private int interestOps() {
+        return _pending == null || _pending.position() == 0
+                        ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+    }
+
+    void onReadable() {
+        try {
+            readFrames();
+        }
+        finally {
+            // releases the read buffer if the socket was closed meanwhile.
+            doneReading();
+        }
+    }
+
+    private void readFrames() {
+        try {
+            startReading();
+            final ByteBuffer rb = _readBuffer;
+
+            if (_channel.read(rb) < 0) {
+                throw new EOFException();
+            }
+
+            rb.flip();
+
+            try {
+                while (!isClosed() && nextFrame(rb)) {
+                    _message = assemble(rb);
+
+                    if (_message == null) {
+                        // more chunks to come.
+                    }
+                    else if (_handler == null) {
+                        readOtherHeader(_message);
+                        getLog().debug(getName() + ": connected to " + _channel.socket() + ' '
+                                       + getOtherHeader());
+                        _handler = _factory.acquire(this);
+                        _handler.onConnection();
+                    }
+                    else {
+                        _handler.onMessage();
+                    }
+
+                    endFrame(rb);
+                }
+            }
+            finally {
+                rb.compact();
+                resizeReadBuffer(rb);
+            }
+        }
+        catch (IOException e) {
+            if (!isClosed() && !(e instanceof EOFException)) {
+                getLog().debug(getName() + ": dropping connection as client has disconnected " + e);
+            }
+            disconnect();
+            return;
+        }
+        catch (Throwable e) {
+            getLog().error(getName() + ": unexpected error for running server", e);
+            disconnect();
+            return;
+        }
+
+        if (isClosed()) {
+            disconnect();
+        }
+    }
+
+    // positions the read buffer over the next complete frame, if there is one.
+    private boolean nextFrame(ByteBuffer rb) throws StreamCorruptedException {
+        final int start = rb.position();
+        final int available = rb.remaining();
+
+        if (available < 4) {
+            return false;
+        }
+
+        final int len = frameLength(rb.getInt(start));
+        checkFrameLength(len, rb.capacity());
+
+        final int size = frameSize(len);
+        if (available < size) {
+            // wait for the rest, the buffer is compacted after each read.
+            _largeFrame = size > rb.capacity() ? size : 0;
+            return false;
+        }
+
+        _inFrame = true;
+        // remember where the next frame starts and where the data ends.
+        _nextFrame = start + size;
+        _dataEnd = start + available;
+        _frameBuffered = frameBuffered(rb, _nextFrame, _dataEnd);
+        rb.position(start + 4);
+        rb.limit(start + len);
+        return true;
+    }
+
+    protected boolean moreToRead() {
+        return _inFrame && _frameBuffered && _loop.inLoop();
+    }
+
+    private void endFrame(ByteBuffer rb) {
+        _inFrame = false;
+        _message = null;
+        rb.limit(_dataEnd);
+        rb.position(_nextFrame);
+    }
+
+    // makes room for a frame larger than a chunk, up to the maximum message size, and goes
+    // back to a chunk once the data buffered fits in one.
+    private void resizeReadBuffer(ByteBuffer rb) {
+        if (isClosed()) {
+            return;
+        }
+
+        if (_largeFrame > rb.capacity()) {
+            replaceReadBuffer(rb, _largeFrame);
+            _largeFrame = 0;
+        }
+        else if (rb.capacity() > _chunkSize && rb.position() <= _chunkSize
+                 && (rb.position() < 4 || frameSize(frameLength(rb.getInt(0))) <= _chunkSize)) {
+            replaceReadBuffer(rb, _chunkSize);
+        }
+    }
+
+    // with the data buffered, which has been compacted to the start of the old buffer.
+    private void replaceReadBuffer(ByteBuffer rb, int size) {
+        rb.flip();
+        _readBuffer = acquireBuffer(size);
+        _readBuffer.put(rb);
+        releaseBuffer(rb);
+    }
+
+    public ByteBuffer read() throws IOException {
+        if (!_inFrame || _message == null) {
+            throw new IOException(getName() + ": read() is only supported while handling a message");
+        }
+        return _message;
+    }
+
+    protected void writeFrame(ByteBuffer wb) throws IOException {
+        synchronized (_pendingLock) {
+            if (_pending == null || _pending.position() == 0) {
+                if (_channel.write(wb) < 0) {
+                    throw new EOFException();
+                }
+
+                if (!wb.hasRemaining()) {
+                    return;
+                }
+
+                _pendingSinceMillis = System.currentTimeMillis();
+            }
+
+            appendPending(wb);
+        }
+
+        if (_key != null) {
+            _loop.execute(_writeInterest);
+        }
+    }
+
+    private void appendPending(ByteBuffer wb) {
+        if (_pending == null || _pending.remaining() < wb.remaining()) {
+            final int needed = (_pending == null ? 0 : _pending.position()) + wb.remaining();
+            int size = _pending == null ? MIN_PACKET_SIZE * 16 : _pending.capacity();
+            while (size < needed) {
+                size *= 2;
+            }
+            ByteBuffer pending = ByteBuffer.allocate(size);
+            if (_pending != null) {
+                _pending.flip();
+                pending.put(_pending);
+            }
+            _pending = pending;
+        }
+        _pending.put(wb);
+    }
+
+    void onWritable() {
+        try {
+            synchronized (_pendingLock) {
+                _pending.flip();
+                try {
+                    if (_channel.write(_pending) < 0) {
+                        throw new EOFException();
+                    }
+                }
+                finally {
+                    _pending.compact();
+                }
+
+                if (_pending.position() == 0) {
+                    _pendingSinceMillis = 0;
+                }
+                else {
+                    _pendingSinceMillis = System.currentTimeMillis();
+                }
+            }
+            updateInterest();
+        }
+        catch (IOException e) {
+            if (!isClosed()) {
+                getLog().debug(getName() + ": dropping connection as client has disconnected " + e);
+            }
+            disconnect();
+        }
+    }
+
+    private void updateInterest() {
+        synchronized (_pendingLock) {
+            if (_key != null && _key.isValid()) {
+                _key.interestOps(interestOps());
+            }
+        }
+    }
+
+    public void setReader(Callback<DataSocket> reader) {
+        throw new UnsupportedOperationException(getName() + ": replies are not read on a server connection");
+    }
+
+    public boolean hasReader() {
+        return false;
+    }
+
+    public Executor callbackExecutor() {
+        throw new UnsupportedOperationException(getName() + ": replies are not read on a server connection");
+    }
+
+    /**
+     * Closes the connection and notifies the handler, exactly once.
+     */
+    void disconnect() {
+        if (_disconnected) {
+            return;
+        }
+
+        _disconnected = true;
+
+        try {
+            if (_handler != null) {
+                _handler.onDisconnection();
+            }
+        }
+        catch (Exception e) {
+            getLog().warn(getName() + ": exception thrown on disconnect.", e);
+        }
+        finally {
+            close();
+        }
+    }
+
+    protected void releaseReadBuffers() {
+        releaseBuffer(_readBuffer);
+    }
+
+    protected void closeChannel() {
+        DataSockets.unregisterDataSocket(this);
+
+        synchronized (_pendingLock) {
+            if (_key != null) {
+                _key.cancel();
+            }
+        }
+
+        try {
+            _channel.close();
+        }
+        catch (IOException ignored) {
+            // ignored.
+        }
+    }
+
+    public void timedCheck(long timeMillis) {
+        final long since;
+
+        synchronized (_pendingLock) {
+            since = _pendingSinceMillis;
+        }
+
+        if (since > 0 && timeMillis - since > TIMEOUT_MS) {
+            getLog().debug(getName() + ": closing writing connection after " + (timeMillis - since) + " ms");
+            _loop.execute(new Runnable() {
+                public void run() {
+                    disconnect();
+                }
+            });
+        }
+    }
+}
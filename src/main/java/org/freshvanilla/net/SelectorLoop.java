@@ -0,0 +1,176 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.freshvanilla.lang.ObjectBuilder;
+import org.freshvanilla.utils.Factory;
+import org.freshvanilla.utils.VanillaResource;
+
+/**
+ * An event loop which owns a Selector and drives the reads and writes of the
+ * SelectorDataSockets registered with it. All the sockets of a loop are serviced by its one
+ * thread; other threads hand work to it with execute().
+ */
+class SelectorLoop extends VanillaResource implements Runnable {
+
+    private final Selector _selector;
+    private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile Thread _thread = null;
+
+    SelectorLoop(String name) throws IOException {
+        super(name);
+        _selector = Selector.open();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == _thread;
+    }
+
+    public void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+
+        _tasks.add(task);
+        _selector.wakeup();
+    }
+
+    public void accept(final SocketChannel channel,
+                       final Factory<DataSocket, DataSocketHandler> factory,
+                       final Map<String, Object> header,
+                       final ObjectBuilder<WireFormat> wireFormatBuilder,
+                       final int maximumMessageSize,
+                       final int maximumAssembledSize,
+                       final DirectBufferPool bufferPool) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    if (isClosed()) {
+                        channel.close();
+                        return;
+                    }
+
+                    SelectorDataSocket ds = new SelectorDataSocket(getName(), channel, SelectorLoop.this,
+                        wireFormatBuilder.create(), header, maximumMessageSize, bufferPool, factory);
+                    ds.setMaximumAssembledSize(maximumAssembledSize);
+                    ds.register(_selector);
+                }
+                catch (IOException e) {
+                    getLog().error(getName() + ": unable to accept connection", e);
+                    try {
+                        channel.close();
+                    }
+                    catch (IOException ignored) {
+                        // ignored
+                    }
+                }
+            }
+        });
+    }
+
+    public void run() {
+        _thread = Thread.currentThread();
+
+        try {
+            while (!isClosed()) {
+                _selector.select();
+                runTasks();
+
+                Set<SelectionKey> keys = _selector.selectedKeys();
+                for (SelectionKey key : keys) {
+                    SelectorDataSocket ds = (SelectorDataSocket)key.attachment();
+
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            ds.onReadable();
+                        }
+
+                        if (key.isValid() && key.isWritable()) {
+                            ds.onWritable();
+                        }
+                    }
+                    catch (CancelledKeyException e) {
+                        ds.disconnect();
+                    }
+                }
+                keys.clear();
+            }
+        }
+        catch (IOException e) {
+            if (!isClosed()) {
+                getLog().error(getName() + ": unexpected error for selector loop", e);
+            }
+        }
+        finally {
+            runTasks();
+            disconnectAll();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = _tasks.poll()) != null) {
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                getLog().error(getName() + ": unexpected error running task", e);
+            }
+        }
+    }
+
+    private void disconnectAll() {
+        List<SelectionKey> keys;
+
+        try {
+            keys = new ArrayList<SelectionKey>(_selector.keys());
+        }
+        catch (RuntimeException e) {
+            // the selector is already closed.
+            keys = new ArrayList<SelectionKey>();
+        }
+
+        for (SelectionKey key : keys) {
+            ((SelectorDataSocket)key.attachment()).disconnect();
+        }
+
+        try {
+            _selector.close();
+        }
+        catch (IOException ignored) {
+            // ignored
+        }
+    }
+
+    public void close() {
+        super.close();
+        _selector.wakeup();
+    }
+}
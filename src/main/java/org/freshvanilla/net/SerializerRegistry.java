@@ -0,0 +1,103 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The TypeSerializers a BinaryWireFormat writes the values of their class with, in place of
+ * its own encoding. Each is registered under a type id which is sent before the value, in
+ * one byte for ids up to 127, so both ends have to register the same serializers under the
+ * same ids before they connect. A serializer is only used for its exact class, not its
+ * subclasses.
+ */
+public class SerializerRegistry {
+
+    public static final int MAXIMUM_TYPE_ID = 64 * 1024 - 1;
+
+    private final ConcurrentMap<Class<?>, Registered<?>> _byType = new ConcurrentHashMap<Class<?>, Registered<?>>();
+    // replaced on each registration, so reading it doesn't need a lock.
+    private volatile TypeSerializer<?>[] _byTypeId = new TypeSerializer<?>[0];
+    // counted after each registration, so the classes wire formats have worked out how to
+    // write are worked out again.
+    private volatile int _registrations = 0;
+
+    /**
+     * @throws IllegalArgumentException if the type id or the serializer's class is already
+     *             registered, or the type id is out of range.
+     */
+    public synchronized <T> void register(int typeId, TypeSerializer<T> serializer) {
+        if (typeId < 0 || typeId > MAXIMUM_TYPE_ID) {
+            throw new IllegalArgumentException("typeId=" + typeId);
+        }
+
+        Class<T> type = serializer.getType();
+        if (_byType.containsKey(type)) {
+            throw new IllegalArgumentException(type + " is already registered");
+        }
+
+        TypeSerializer<?>[] byTypeId = _byTypeId;
+        if (typeId < byTypeId.length && byTypeId[typeId] != null) {
+            throw new IllegalArgumentException("typeId=" + typeId + " is already registered for "
+                                               + byTypeId[typeId].getType());
+        }
+
+        TypeSerializer<?>[] byTypeId2 = new TypeSerializer<?>[Math.max(byTypeId.length, typeId + 1)];
+        System.arraycopy(byTypeId, 0, byTypeId2, 0, byTypeId.length);
+        byTypeId2[typeId] = serializer;
+        _byType.put(type, new Registered<T>(typeId, serializer));
+        _byTypeId = byTypeId2;
+        _registrations++;
+    }
+
+    public boolean isEmpty() {
+        return _byType.isEmpty();
+    }
+
+    /**
+     * @return the number of serializers registered so far.
+     */
+    int registrations() {
+        return _registrations;
+    }
+
+    /**
+     * @return the serializer and type id registered for exactly this class, or null.
+     */
+    Registered<?> forType(Class<?> type) {
+        return _byType.get(type);
+    }
+
+    /**
+     * @return the serializer registered under this type id, or null.
+     */
+    TypeSerializer<?> forTypeId(long typeId) {
+        final TypeSerializer<?>[] byTypeId = _byTypeId;
+        return typeId >= 0 && typeId < byTypeId.length ? byTypeId[(int)typeId] : null;
+    }
+
+    static final class Registered<T> {
+        final int _typeId;
+        final TypeSerializer<T> _serializer;
+
+        Registered(int typeId, TypeSerializer<T> serializer) {
+            _typeId = typeId;
+            _serializer = serializer;
+        }
+    }
+}
@@ -18,5 +18,11 @@ package org.freshvanilla.net;
 
 enum SpecialTag {
     NULL, TRUE, FALSE, SIGNED1, BYTES, SIGNED2, SIGNED4, SIGNED8, CHAR, FLOAT4, FLOAT8, ARRAY, TAG, STRING,
-    LIST, SET, MAP, ENTRY, ENUM, SERIALIZABLE, CLASS, META_CLASS, POJO
+    LIST, SET, MAP, ENTRY, ENUM, SERIALIZABLE, CLASS, META_CLASS, POJO,
+    // only written once the other end has the BinaryWireFormat.PRIMITIVE_ARRAYS feature.
+    BOOLEANS, SHORTS, CHARS, INTS, LONGS, FLOATS, DOUBLES,
+    // zigzag LEB128 read as an Integer or a Long, once the other end has BinaryWireFormat.VARINTS.
+    VARINT4, VARINT8,
+    // a type id and a value written by the TypeSerializer registered for it.
+    CUSTOM
 }
@@ -0,0 +1,149 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Strings read by a BinaryWireFormat, looked up by the bytes they were read from, so a value
+ * which is read over and over is one String instance rather than a new one each time, and
+ * reading it again allocates nothing. Each slot holds one string and a string read into a
+ * taken slot replaces it. Strings of more than MAXIMUM_LENGTH bytes are not kept.
+ * <p>
+ * The entries can't change once made, so one cache can be shared by the connections of a
+ * BinaryWireFormat.Builder without locking.
+ */
+public class StringCache {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int MAXIMUM_LENGTH = 64;
+
+    private final AtomicReferenceArray<Entry> _entries;
+    private final int _mask;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+
+    public StringCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of 2.
+     */
+    public StringCache(int capacity) {
+        if (capacity <= 0 || capacity > 1 << 24) {
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        _entries = new AtomicReferenceArray<Entry>(size);
+        _mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return _entries.length();
+    }
+
+    public long getHits() {
+        return _hits.get();
+    }
+
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    /**
+     * @return the share of the strings looked up which were found, or 0 if there have been none.
+     */
+    public double getHitRate() {
+        long hits = _hits.get();
+        long lookups = hits + _misses.get();
+        return lookups == 0 ? 0 : (double)hits / lookups;
+    }
+
+    /**
+     * @param utf8 whether the bytes are UTF-8 rather than one Latin-1 byte per char.
+     * @return the string read before from these bytes, or null if the caller has to make it
+     *         and can then add() it.
+     */
+    String get(byte[] bytes, int len, boolean utf8) {
+        if (len > MAXIMUM_LENGTH) {
+            return null;
+        }
+
+        final Entry entry = _entries.get(hash(bytes, len, utf8) & _mask);
+        if (entry != null && entry.matches(bytes, len, utf8)) {
+            _hits.incrementAndGet();
+            return entry._string;
+        }
+        _misses.incrementAndGet();
+        return null;
+    }
+
+    void add(byte[] bytes, int len, boolean utf8, String string) {
+        if (len > MAXIMUM_LENGTH) {
+            return;
+        }
+
+        byte[] bytes2 = new byte[len];
+        System.arraycopy(bytes, 0, bytes2, 0, len);
+        _entries.set(hash(bytes, len, utf8) & _mask, new Entry(bytes2, utf8, string));
+    }
+
+    private static int hash(byte[] bytes, int len, boolean utf8) {
+        int h = utf8 ? 1 : 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + bytes[i];
+        }
+        // spread the upper bits into the lower bits used as the slot.
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    public String toString() {
+        return "StringCache{capacity=" + getCapacity() + ", hits=" + getHits() + ", misses=" + getMisses()
+               + '}';
+    }
+
+    static final class Entry {
+        final byte[] _bytes;
+        final boolean _utf8;
+        final String _string;
+
+        Entry(byte[] bytes, boolean utf8, String string) {
+            _bytes = bytes;
+            _utf8 = utf8;
+            _string = string;
+        }
+
+        boolean matches(byte[] bytes, int len, boolean utf8) {
+            final byte[] bytes2 = _bytes;
+            if (bytes2.length != len || _utf8 != utf8) {
+                return false;
+            }
+            for (int i = 0; i < len; i++) {
+                if (bytes2[i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package org.freshvanilla.net;
+
+import java.io.StreamCorruptedException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The tags sent over one connection once both ends support BinaryWireFormat.BOUNDED_TAGS.
+ * Each tag is kept in a numbered slot. The writer decides which slot a tag goes in and
+ * sends its text only when it defines the slot, so the reader just follows and never holds
+ * more slots than the writer uses.
+ * <p>
+ * The first slots hold SEED_TAGS which both ends know and are never sent. Structural tags,
+ * such as class descriptors and enum names, stay in their slot while they take no more than
+ * half the others. All other tags, and those past that half, are evicted least recently used
+ * first once all slots are in use.
+ */
+class TagDictionary {
+
+    static final int DEFAULT_CAPACITY = 1024;
+    static final int MAXIMUM_CAPACITY = 64 * 1024;
+
+    // changing these breaks the connection with other versions.
+    static final String[] SEED_TAGS = {"java.lang.Object", "java.lang.String", "java.lang.Boolean",
+        "java.lang.Byte", "java.lang.Character", "java.lang.Short", "java.lang.Integer", "java.lang.Long",
+        "java.lang.Float", "java.lang.Double", "java.lang.Number", "java.lang.Class", "java.math.BigInteger",
+        "java.math.BigDecimal", "java.util.Date", "java.util.List", "java.util.Map", "java.util.Set",
+        "java.lang.Throwable", "java.lang.Exception", "java.lang.RuntimeException",
+        "java.lang.IllegalArgumentException", "java.lang.IllegalStateException",
+        "java.lang.UnsupportedOperationException", "java.lang.NullPointerException", "boolean", "byte", "char",
+        "short", "int", "long", "float", "double"};
+
+    private static final Map<String, Integer> SEED_SLOTS = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < SEED_TAGS.length; i++) {
+            SEED_SLOTS.put(SEED_TAGS[i], i);
+        }
+    }
+
+    private final int _capacity;
+    private final int _maximumPinned;
+    private final Map<String, Integer> _pinned = new HashMap<String, Integer>();
+    // in access order, so the eldest is the least recently used.
+    private final LinkedHashMap<String, Integer> _recent = new LinkedHashMap<String, Integer>(64, 0.75f, true);
+    private int _nextSlot = SEED_TAGS.length;
+    private long _evictions = 0;
+
+    private String[] _inTags = new String[64];
+
+    TagDictionary(int capacity) {
+        if (capacity < SEED_TAGS.length + 2 || capacity > MAXIMUM_CAPACITY) {
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+        _capacity = capacity;
+        _maximumPinned = (capacity - SEED_TAGS.length) / 2;
+    }
+
+    /**
+     * @param structural whether the tag names a class or the like, rather than data.
+     * @return the tag's slot, or -1 - slot if the tag has to be sent to define the slot.
+     */
+    int outSlot(String tag, boolean structural) {
+        Integer slot = SEED_SLOTS.get(tag);
+        if (slot == null) {
+            slot = _pinned.get(tag);
+        }
+        if (slot == null) {
+            slot = _recent.get(tag);
+        }
+        if (slot != null) {
+            return slot;
+        }
+
+        int newSlot;
+        if (_nextSlot < _capacity) {
+            newSlot = _nextSlot++;
+        }
+        else {
+            // there is always a tag to evict as at most half the slots are pinned.
+            Iterator<Integer> eldest = _recent.values().iterator();
+            newSlot = eldest.next();
+            eldest.remove();
+            _evictions++;
+        }
+
+        if (structural && _pinned.size() < _maximumPinned) {
+            _pinned.put(tag, newSlot);
+        }
+        else {
+            _recent.put(tag, newSlot);
+        }
+        return -1 - newSlot;
+    }
+
+    long getEvictions() {
+        return _evictions;
+    }
+
+    void define(long slot, String tag) throws StreamCorruptedException {
+        if (slot < SEED_TAGS.length || slot >= MAXIMUM_CAPACITY) {
+            throw new StreamCorruptedException("Invalid tag slot= " + slot);
+        }
+
+        if (slot >= _inTags.length) {
+            int size = _inTags.length * 2;
+            while (size <= slot) {
+                size *= 2;
+            }
+            String[] inTags = new String[size];
+            System.arraycopy(_inTags, 0, inTags, 0, _inTags.length);
+            _inTags = inTags;
+        }
+        _inTags[(int)slot] = tag;
+    }
+
+    String inTag(long slot) throws StreamCorruptedException {
+        if (slot >= 0 && slot < SEED_TAGS.length) {
+            return SEED_TAGS[(int)slot];
+        }
+
+        String tag = slot >= 0 && slot < _inTags.length ? _inTags[(int)slot] : null;
+        if (tag == null) {
+            throw new StreamCorruptedException("Undefined tag slot= " + slot);
+        }
+        return tag;
+    }
+}
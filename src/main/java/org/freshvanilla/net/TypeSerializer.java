@@ -0,0 +1,36 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A hand written codec for the values of one class, registered with a SerializerRegistry.
+ * The values written are read back by the TypeSerializer registered under the same type
+ * id at the other end. The fields of a value can be written with the WireFormat's
+ * writeNum(), writeObject() etc.
+ */
+public interface TypeSerializer<T> {
+
+    public Class<T> getType();
+
+    public void write(ByteBuffer wb, WireFormat wf, T value) throws IOException;
+
+    public T read(ByteBuffer rb, WireFormat wf) throws ClassNotFoundException, IOException;
+
+}
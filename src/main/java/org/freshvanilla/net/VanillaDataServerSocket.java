@@ -30,35 +30,89 @@ import org.freshvanilla.lang.ObjectBuilder;
 import org.freshvanilla.utils.Factory;
 import org.freshvanilla.utils.NamedThreadFactory;
 import org.freshvanilla.utils.VanillaResource;
+import org.freshvanilla.utils.VirtualThreads;
 
 public class VanillaDataServerSocket extends VanillaResource implements Runnable {
 
+    public static final int DEFAULT_SELECTOR_THREADS = Math.max(1,
+        Runtime.getRuntime().availableProcessors() / 2);
+
     private final ServerSocketChannel _channel;
     private final Factory<DataSocket, DataSocketHandler> _factory;
     private final Map<String, Object> _header;
     private final ObjectBuilder<WireFormat> _wireFormatBuilder;
     private final int _maximumMessageSize;
+    private final DirectBufferPool _bufferPool;
     private final ExecutorService _executor;
+    private final DataServerMode _mode;
+    private final SelectorLoop[] _selectorLoops;
     private final int port;
 
+    private int _nextSelectorLoop = 0;
+    private volatile int _maximumAssembledSize = DataSocketFactory.DEFAULT_MAXIMUM_ASSEMBLED_SIZE;
+
     public VanillaDataServerSocket(String name,
                                    Factory<DataSocket, DataSocketHandler> factory,
                                    Map<String, Object> header,
                                    int port,
                                    ObjectBuilder<WireFormat> wireFormatBuilder,
                                    int maximumMessageSize) throws IOException {
+        this(name, factory, header, port, wireFormatBuilder, maximumMessageSize,
+            DataServerMode.THREAD_PER_CONNECTION, 0);
+    }
+
+    public VanillaDataServerSocket(String name,
+                                   Factory<DataSocket, DataSocketHandler> factory,
+                                   Map<String, Object> header,
+                                   int port,
+                                   ObjectBuilder<WireFormat> wireFormatBuilder,
+                                   int maximumMessageSize,
+                                   DataServerMode mode,
+                                   int selectorThreads) throws IOException {
+        this(name, factory, header, port, wireFormatBuilder, maximumMessageSize, mode, selectorThreads,
+            DirectBufferPool.getDefault());
+    }
+
+    public VanillaDataServerSocket(String name,
+                                   Factory<DataSocket, DataSocketHandler> factory,
+                                   Map<String, Object> header,
+                                   int port,
+                                   ObjectBuilder<WireFormat> wireFormatBuilder,
+                                   int maximumMessageSize,
+                                   DataServerMode mode,
+                                   int selectorThreads,
+                                   DirectBufferPool bufferPool) throws IOException {
         super(name);
         _factory = factory;
         _header = header;
         _wireFormatBuilder = wireFormatBuilder;
         _maximumMessageSize = maximumMessageSize;
+        _bufferPool = bufferPool;
+        if (mode == DataServerMode.VIRTUAL_THREAD && !VirtualThreads.isSupported()) {
+            getLog().info(name + ": virtual threads are not supported, using a thread per connection");
+            mode = DataServerMode.THREAD_PER_CONNECTION;
+        }
+        _mode = mode;
 
         _channel = ServerSocketChannel.open();
         _channel.configureBlocking(true);
         port = bindToPort(port);
         this.port = port;
-        _executor = Executors.newCachedThreadPool(new NamedThreadFactory(name + "-server",
-            Thread.MAX_PRIORITY, true));
+        _executor = Executors.newCachedThreadPool(mode == DataServerMode.VIRTUAL_THREAD
+                        ? VirtualThreads.newThreadFactory(name + "-server")
+                        : new NamedThreadFactory(name + "-server", Thread.MAX_PRIORITY, true));
+
+        if (mode == DataServerMode.SELECTOR) {
+            _selectorLoops = new SelectorLoop[selectorThreads > 0 ? selectorThreads : DEFAULT_SELECTOR_THREADS];
+            for (int i = 0; i < _selectorLoops.length; i++) {
+                _selectorLoops[i] = new SelectorLoop(name);
+                _executor.submit(_selectorLoops[i]);
+            }
+        }
+        else {
+            _selectorLoops = null;
+        }
+
         _executor.submit(this);
     }
 
@@ -93,12 +147,41 @@ public class VanillaDataServerSocket extends VanillaResource implements Runnable
         return port;
     }
 
+    public DirectBufferPool getBufferPool() {
+        return _bufferPool;
+    }
+
+    public DataServerMode getMode() {
+        return _mode;
+    }
+
+    public int getMaximumAssembledSize() {
+        return _maximumAssembledSize;
+    }
+
+    /**
+     * Sets the size a message sent in chunks can grow to before the connection reading it is
+     * dropped, for the connections accepted from now on.
+     */
+    public void setMaximumAssembledSize(int maximumAssembledSize) {
+        _maximumAssembledSize = maximumAssembledSize;
+    }
+
     public void run() {
         try {
             while (!isClosed()) {
                 final SocketChannel socketChannel = _channel.accept();
-                Runnable runnable = new RmiServerRunnable(socketChannel);
-                _executor.submit(runnable);
+
+                if (_selectorLoops != null) {
+                    SelectorLoop loop = _selectorLoops[_nextSelectorLoop];
+                    _nextSelectorLoop = (_nextSelectorLoop + 1) % _selectorLoops.length;
+                    loop.accept(socketChannel, _factory, _header, _wireFormatBuilder, _maximumMessageSize,
+                        _maximumAssembledSize, _bufferPool);
+                }
+                else {
+                    Runnable runnable = new RmiServerRunnable(socketChannel);
+                    _executor.submit(runnable);
+                }
             }
         }
         catch (IOException e) {
@@ -117,6 +200,13 @@ public class VanillaDataServerSocket extends VanillaResource implements Runnable
         catch (IOException ignored) {
             // ignored.
         }
+
+        if (_selectorLoops != null) {
+            for (SelectorLoop loop : _selectorLoops) {
+                loop.close();
+            }
+        }
+
         _executor.shutdown();
     }
 
@@ -133,11 +223,13 @@ public class VanillaDataServerSocket extends VanillaResource implements Runnable
         }
 
         public void run() {
-            DataSocket ds = null;
+            VanillaDataSocket ds = null;
             DataSocketHandler socketHandler = null;
             try {
                 ds = new VanillaDataSocket(getName(), null, socketChannel, _wireFormatBuilder.create(), _header,
-                    _maximumMessageSize);
+                    _maximumMessageSize, _bufferPool);
+                ds.setMaximumAssembledSize(_maximumAssembledSize);
+                ds.batchReplies();
                 socketHandler = _factory.acquire(ds);
                 socketHandler.onConnection();
                 while (!ds.isClosed()) {
@@ -164,6 +256,11 @@ public class VanillaDataServerSocket extends VanillaResource implements Runnable
                     // ignored
                 }
             }
+            finally {
+                if (ds != null) {
+                    ds.doneReading();
+                }
+            }
         }
     }
 }
@@ -18,41 +18,44 @@ package org.freshvanilla.net;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.freshvanilla.utils.Callback;
 import org.freshvanilla.utils.NamedThreadFactory;
-import org.freshvanilla.utils.VanillaResource;
+import org.freshvanilla.utils.SerialExecutor;
+import org.freshvanilla.utils.VirtualThreads;
 import org.slf4j.Logger;
 
-public class VanillaDataSocket extends VanillaResource implements DataSocket {
+public class VanillaDataSocket extends AbstractDataSocket {
 
-    private static final int MIN_PACKET_SIZE = 256;
-    private static final int BUFFER_SIZE = 256 * 1024;
     private static final long TIMEOUT_MS = 10 * 1000L;
     private static final long WARNING_PERIOD = 3000L - DataSockets.CHECK_PERIOD_MS / 2;
 
     private final Logger _log;
-    private final InetSocketAddress _address;
     private final SocketChannel _channel;
-    private final WireFormat _wireFormat;
-    private final AtomicLong _microTimestamp = new AtomicLong(System.currentTimeMillis() * 1000L);
     private final Object _executorLock = new Object();
-    private final ConcurrentMap<Long, Callback<?>> _callbackMap = new ConcurrentHashMap<Long, Callback<?>>();
     private final ByteBuffer _readBuffer;
-    private final ByteBuffer _writeBuffer;
-    private final Map<String, Object> _otherHeader;
+    // for frames larger than the read buffer, from peers which don't send chunks.
+    private ByteBuffer _largeReadBuffer = null;
+    // shared by the sockets of a DataSocketFactory, otherwise created by setReader().
+    private final ExecutorService _sharedExecutor;
     private ExecutorService _executor = null;
+    private volatile SerialExecutor _callbackExecutor = null;
+    // where the frame after the last one read starts, and where the data read ends.
+    private int _nextFrame = 0;
+    private int _dataEnd = 0;
+    // set on a server's connections, where requests are read and replied to by one thread.
+    private boolean _batchReplies = false;
+    // whether another whole frame was buffered when the last one was read.
+    private boolean _frameBuffered = false;
 
     // warning metrics
     private boolean _reading = false;
@@ -62,100 +65,151 @@ public class VanillaDataSocket extends VanillaResource implements DataSocket {
     private long _writeTimeMillis = 0;
     private long _nextWriteWarningMillis = 0;
 
-    @SuppressWarnings("unchecked")
     public VanillaDataSocket(String name,
                              InetSocketAddress address,
                              SocketChannel channel,
                              WireFormat wireFormat,
                              Map<String, Object> header,
                              int maximumMessageSize) throws ClassNotFoundException, IOException {
-        super(name);
-        _log = getLog();
-        _address = address;
-        _channel = channel;
-        channel.configureBlocking(true);
-        Socket socket = channel.socket();
-        socket.setTcpNoDelay(true);
-        socket.setSendBufferSize(BUFFER_SIZE);
-        socket.setReceiveBufferSize(BUFFER_SIZE);
-
-        try {
-            // 0x10 = IPTOS_LOWDELAY
-            socket.setTrafficClass(0x10);
-        }
-        catch (SocketException sex) {
-            // no IP_TOS for you
-        }
-
-        _wireFormat = wireFormat;
-        _readBuffer = allocateBuffer(maximumMessageSize);
-        _writeBuffer = allocateBuffer(maximumMessageSize);
-        getLog().debug(name + ": connecting to " + socket);
-        DataSockets.registerDataSocket(this);
-
-        wireFormat.writeObject(writeBuffer(), header);
-        flush();
-        final ByteBuffer rb = read();
-        _otherHeader = (Map<String, Object>)wireFormat.readObject(rb);
-        getLog().debug(name + ": connected to " + socket + ' ' + _otherHeader);
+        this(name, address, channel, wireFormat, header, maximumMessageSize, DirectBufferPool.getDefault());
     }
 
-    public InetSocketAddress getAddress() {
-        return _address;
+    public VanillaDataSocket(String name,
+                             InetSocketAddress address,
+                             SocketChannel channel,
+                             WireFormat wireFormat,
+                             Map<String, Object> header,
+                             int maximumMessageSize,
+                             DirectBufferPool bufferPool) throws ClassNotFoundException, IOException {
+        this(name, address, channel, wireFormat, header, maximumMessageSize, bufferPool, null);
     }
 
-    private ByteBuffer allocateBuffer(int maximumMessageSize) {
-        // we always use direct buffers.
-        return ByteBuffer.allocateDirect(maximumMessageSize);
-    }
+    /**
+     * @param readerExecutor runs the reader and the callbacks it dispatches, or null for the
+     *            socket to create its own when a reader is set.
+     */
+    public VanillaDataSocket(String name,
+                             InetSocketAddress address,
+                             SocketChannel channel,
+                             WireFormat wireFormat,
+                             Map<String, Object> header,
+                             int maximumMessageSize,
+                             DirectBufferPool bufferPool,
+                             ExecutorService readerExecutor) throws ClassNotFoundException, IOException {
+        super(name, address, wireFormat, maximumMessageSize, bufferPool);
+        _log = getLog();
+        _sharedExecutor = readerExecutor;
+        _channel = channel;
+        _readBuffer = acquireBuffer(chunkSize(maximumMessageSize));
 
-    public Map<String, Object> getOtherHeader() {
-        return _otherHeader;
-    }
+        try {
+            channel.configureBlocking(true);
+            Socket socket = channel.socket();
+            configureSocket(socket);
 
-    public WireFormat wireFormat() {
-        return _wireFormat;
-    }
+            getLog().debug(name + ": connecting to " + socket);
+            DataSockets.registerDataSocket(this);
 
-    public void addCallback(long sequenceNumber, Callback<?> callback) {
-        _callbackMap.put(sequenceNumber, callback);
+            writeHeader(header);
+            readOtherHeader(read());
+            getLog().debug(name + ": connected to " + socket + ' ' + getOtherHeader());
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+        catch (ClassNotFoundException e) {
+            close();
+            throw e;
+        }
+        finally {
+            doneReading();
+        }
     }
 
-    public Callback<?> removeCallback(long sequenceNumber) {
-        return _callbackMap.remove(sequenceNumber);
+    /**
+     * @return an Executor for reader threads, which block reading their socket.
+     */
+    static ExecutorService newReaderExecutor(String name) {
+        return Executors.newCachedThreadPool(VirtualThreads.isEnabledForReaders()
+                        ? VirtualThreads.newThreadFactory(name + "-reply-listener")
+                        : new NamedThreadFactory(name + "-reply-listener", Thread.MAX_PRIORITY, true));
     }
 
     public void setReader(final Callback<DataSocket> reader) {
         synchronized (_executorLock) {
-            if (_executor != null) {
+            if (_callbackExecutor != null) {
                 return;
             }
-            _executor = Executors.newCachedThreadPool(new NamedThreadFactory(getName() + "-reply-listener",
-                Thread.MAX_PRIORITY, true));
-            _executor.submit(new ReaderRunnable(reader));
+            _executor = _sharedExecutor != null ? _sharedExecutor : newReaderExecutor(getName());
+            // before the reader can dispatch anything.
+            _callbackExecutor = new SerialExecutor(_executor);
+            _executor.execute(new ReaderRunnable(reader));
         }
     }
 
-    public ByteBuffer writeBuffer() {
-        _writeBuffer.clear();
-        // so we can write the length later.
-        _writeBuffer.position(4);
-        return _writeBuffer;
+    public boolean hasReader() {
+        return _callbackExecutor != null;
     }
 
+    public Executor callbackExecutor() {
+        Executor executor = _callbackExecutor;
+        if (executor == null) {
+            throw new IllegalStateException(getName() + ": no reader has been set");
+        }
+        return executor;
+    }
+
+    /**
+     * The buffer returned is used until the thread calls read() again, or the socket's
+     * reader returns or it is recycled.
+     */
     public ByteBuffer read() throws IOException {
-        final ByteBuffer rb = _readBuffer;
-        rb.rewind();
-        rb.limit(MIN_PACKET_SIZE);
+        startReading();
+        ByteBuffer message;
+        try {
+            do {
+                message = assemble(readFrame());
+            }
+            while (message == null);
+        }
+        catch (StreamCorruptedException e) {
+            // the frames after it can't be found.
+            close();
+            throw e;
+        }
+        return message;
+    }
+
+    // frames are read from whatever has been buffered, reading more only when needed.
+    private ByteBuffer readFrame() throws IOException {
+        ByteBuffer rb = _readBuffer;
+        // the data still buffered after the last frame.
+        rb.limit(_dataEnd);
+        rb.position(_nextFrame);
 
-        readFully(rb);
+        fill(rb, 4);
         _reading = true;
 
+        int start = rb.position();
+        final int len;
         try {
-            int len = rb.getInt(0);
-            if (len > MIN_PACKET_SIZE) {
-                rb.limit(len);
-                readFully(rb);
+            len = frameLength(rb.getInt(start));
+            checkFrameLength(len, rb.capacity());
+            final int size = frameSize(len);
+
+            if (size > rb.capacity()) {
+                rb = largeReadBuffer(size);
+                start = 0;
+                _nextFrame = _dataEnd = 0;
+                _frameBuffered = false;
+            }
+            else {
+                fill(rb, size);
+                start = rb.position();
+                _nextFrame = start + size;
+                _dataEnd = rb.limit();
+                _frameBuffered = frameBuffered(rb, _nextFrame, _dataEnd);
             }
         }
         finally {
@@ -163,12 +217,66 @@ public class VanillaDataSocket extends VanillaResource implements DataSocket {
             _readTimeMillis = 0;
         }
 
-        rb.rewind();
+        rb.limit(start + len);
         // after the length.
-        rb.position(4);
+        rb.position(start + 4);
         return rb;
     }
 
+    /**
+     * Holds back the replies written by the thread reading requests while it has more
+     * requests buffered.
+     */
+    void batchReplies() {
+        _batchReplies = true;
+    }
+
+    protected boolean moreToRead() {
+        return _batchReplies && _frameBuffered && isReadingThread();
+    }
+
+    /**
+     * Reads until there are at least the given bytes after the position, moving them to the
+     * start of the buffer if there isn't room after them.
+     */
+    private void fill(ByteBuffer rb, int bytes) throws IOException {
+        if (rb.remaining() >= bytes) {
+            return;
+        }
+
+        int start = rb.position();
+        if (start + bytes > rb.capacity()) {
+            rb.compact();
+            start = 0;
+        }
+        else {
+            rb.position(rb.limit());
+            rb.limit(rb.capacity());
+        }
+
+        while (rb.position() - start < bytes) {
+            channelRead(rb);
+        }
+
+        rb.limit(rb.position());
+        rb.position(start);
+    }
+
+    // reads a whole frame which is larger than the read buffer, which is left empty.
+    private ByteBuffer largeReadBuffer(int size) throws IOException {
+        ByteBuffer large = _largeReadBuffer;
+        if (large == null || large.capacity() < size) {
+            releaseBuffer(large);
+            large = _largeReadBuffer = acquireBuffer(size);
+        }
+
+        large.clear();
+        large.put(_readBuffer);
+        large.limit(size);
+        readFully(large);
+        return large;
+    }
+
     private void readFully(ByteBuffer rb) throws IOException {
         channelRead(rb);
 
@@ -248,16 +356,7 @@ public class VanillaDataSocket extends VanillaResource implements DataSocket {
         }
     }
 
-    public void flush() throws IOException {
-        final ByteBuffer wb = _writeBuffer;
-        int len = wb.position();
-        wb.flip();
-        wb.putInt(0, len);
-
-        if (len < MIN_PACKET_SIZE) {
-            wb.limit(len = MIN_PACKET_SIZE);
-        }
-
+    protected void writeFrame(ByteBuffer wb) throws IOException {
         _writing = true;
 
         try {
@@ -269,12 +368,12 @@ public class VanillaDataSocket extends VanillaResource implements DataSocket {
         }
     }
 
-    public long microTimestamp() {
-        return _microTimestamp.getAndIncrement();
+    protected void releaseReadBuffers() {
+        releaseBuffer(_readBuffer);
+        releaseBuffer(_largeReadBuffer);
     }
 
-    public void close() {
-        super.close();
+    protected void closeChannel() {
         DataSockets.unregisterDataSocket(this);
 
         try {
@@ -284,16 +383,13 @@ public class VanillaDataSocket extends VanillaResource implements DataSocket {
             // ignored.
         }
 
-        if (_executor != null) {
-            _executor.shutdownNow();
-        }
-
-        for (Callback<?> callback : _callbackMap.values()) {
-            callback.onException(new IllegalStateException(getName() + " is closed!"));
+        synchronized (_executorLock) {
+            // a shared Executor's reader returns once the socket is closed.
+            if (_executor != null && _executor != _sharedExecutor) {
+                _executor.shutdownNow();
+            }
+            _executor = null;
         }
-
-        _executor = null;
-        _callbackMap.clear();
     }
 
     class ReaderRunnable implements Runnable {
@@ -304,25 +400,32 @@ public class VanillaDataSocket extends VanillaResource implements DataSocket {
         }
 
         public void run() {
-            while (!isClosed()) {
-                try {
-                    _reader.onCallback(VanillaDataSocket.this);
-                }
-                catch (Exception e) {
-                    if (isClosed()) {
-                        return;
+            try {
+                while (!isClosed()) {
+                    try {
+                        _reader.onCallback(VanillaDataSocket.this);
                     }
-
-                    _reader.onException(e);
-                    if (e instanceof IOException) {
-                        close();
+                    catch (Exception e) {
+                        if (isClosed()) {
+                            return;
+                        }
+
+                        _reader.onException(e);
+                        if (e instanceof IOException) {
+                            close();
+                        }
                     }
                 }
             }
+            finally {
+                doneReading();
+            }
         }
     }
 
     public void timedCheck(long timeMillis) {
+        expireCallbacks(timeMillis);
+
         if (_reading) {
             if (_readTimeMillis == 0) {
                 _readTimeMillis = timeMillis;
@@ -19,14 +19,17 @@ package org.freshvanilla.net;
 import java.io.IOException;
 import java.io.NotSerializableException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.freshvanilla.lang.MetaClass;
 import org.freshvanilla.lang.MetaClasses;
-import org.freshvanilla.lang.MetaField;
 
 public class VanillaPojoSerializer implements PojoSerializer {
 
     private final MetaClasses _metaClasses;
+    private final ConcurrentMap<Class<?>, PojoCodec<?>> _writeCodecs = new ConcurrentHashMap<Class<?>, PojoCodec<?>>();
+    private final ConcurrentMap<String, PojoCodec<?>> _readCodecs = new ConcurrentHashMap<String, PojoCodec<?>>();
 
     public VanillaPojoSerializer(MetaClasses metaclasses) {
         super();
@@ -41,35 +44,43 @@ public class VanillaPojoSerializer implements PojoSerializer {
 
     @SuppressWarnings("unchecked")
     public <Pojo> void serialize(ByteBuffer wb, WireFormat wf, Pojo pojo) throws IOException {
-        MetaClass<Pojo> clazz = _metaClasses.acquireMetaClass((Class<Pojo>)pojo.getClass());
-        wf.writeTag(wb, clazz.nameWithParameters());
+        PojoCodec<Pojo> codec = (PojoCodec<Pojo>)_writeCodecs.get(pojo.getClass());
 
-        for (MetaField<Pojo, ?> field : clazz.fields()) {
-            wf.writeField(wb, field, pojo);
+        if (codec == null) {
+            codec = new PojoCodec<Pojo>(_metaClasses.acquireMetaClass((Class<Pojo>)pojo.getClass()));
+            _writeCodecs.putIfAbsent(pojo.getClass(), codec);
         }
+
+        wf.writeTag(wb, codec.getMetaClass().nameWithParameters());
+        codec.write(wb, wf, pojo);
     }
 
+    @SuppressWarnings("unchecked")
     public <Pojo> Pojo deserialize(ByteBuffer rb, WireFormat wf) throws ClassNotFoundException, IOException {
         String classWithParameters = (String)wf.readObject(rb);
-        MetaClass<Pojo> clazz = _metaClasses.acquireMetaClass(classWithParameters);
+        PojoCodec<Pojo> codec = (PojoCodec<Pojo>)_readCodecs.get(classWithParameters);
+
+        if (codec == null) {
+            MetaClass<Pojo> clazz = _metaClasses.acquireMetaClass(classWithParameters);
 
-        if (clazz == null) {
-            throw new ClassNotFoundException(classWithParameters);
+            if (clazz == null) {
+                throw new ClassNotFoundException(classWithParameters);
+            }
+
+            codec = new PojoCodec<Pojo>(clazz);
+            _readCodecs.putIfAbsent(classWithParameters, codec);
         }
 
         Pojo pojo;
 
         try {
-            pojo = clazz.newInstance();
+            pojo = codec.getMetaClass().newInstance();
         }
         catch (InstantiationException e) {
-            throw new NotSerializableException("Exception attempting to create " + clazz + ' ' + e);
-        }
-
-        for (MetaField<Pojo, ?> field : clazz.fields()) {
-            wf.readField(rb, field, pojo);
+            throw new NotSerializableException("Exception attempting to create " + codec.getMetaClass() + ' ' + e);
         }
 
+        codec.read(rb, wf, pojo);
         return pojo;
     }
 
@@ -19,6 +19,7 @@ package org.freshvanilla.net;
 import java.io.IOException;
 import java.io.StreamCorruptedException;
 import java.nio.ByteBuffer;
+import java.util.Set;
 
 import org.freshvanilla.lang.MetaField;
 
@@ -45,6 +46,8 @@ public interface WireFormat {
 
     public void writeBoolean(ByteBuffer readBuffer, boolean flag);
 
+    public void writeDouble(ByteBuffer writeBuffer, double value);
+
     public <Pojo, T> void writeField(ByteBuffer wb, MetaField<Pojo, T> field, Pojo pojo) throws IOException;
 
     public void writeNum(ByteBuffer writeBuffer, long value);
@@ -53,4 +56,15 @@ public interface WireFormat {
 
     public void writeTag(ByteBuffer writeBuffer, String tag);
 
+    /**
+     * @return the optional encodings this WireFormat can read, sent in the connection header.
+     */
+    public Set<String> supportedFeatures();
+
+    /**
+     * Called once the headers have been exchanged with the optional encodings both ends of the
+     * connection can read. Until then only the base encoding is written.
+     */
+    public void enableFeatures(Set<String> features);
+
 }
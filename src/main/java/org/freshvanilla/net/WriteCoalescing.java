@@ -0,0 +1,138 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package org.freshvanilla.net;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.freshvanilla.utils.NamedThreadFactory;
+
+/**
+ * How a DataSocket coalesces the messages written to it while it is locked with lockWrite().
+ * A message written while other threads wait for the lock is held back and written with
+ * theirs, until maximumBatchBytes have been held back. With a maximumDelayMicros, a thread
+ * which finds no one waiting waits up to that long after the first message held back for
+ * more to be written, so calls made in a short burst are written together as well. They are
+ * then written by a timer thread shared by all sockets, and the caller doesn't wait.
+ * <p>
+ * Messages are only held back when the other side reads chunked, unpadded frames. The
+ * number of messages sent by each write is counted in a histogram shared by the sockets
+ * using this.
+ */
+public class WriteCoalescing {
+
+    static final int BUCKETS = 16;
+
+    private static final AtomicReference<ScheduledExecutorService> TIMER = new AtomicReference<ScheduledExecutorService>();
+
+    private final int _maximumBatchBytes;
+    private final long _maximumDelayNanos;
+    // bucket i counts the writes of 2^i to 2^(i+1)-1 messages.
+    private final AtomicLongArray _batchSizes = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param maximumBatchBytes once this many bytes are held back they are written.
+     * @param maximumDelayMicros how long the first message held back can wait for others, or 0
+     *            to only hold messages back while other threads are waiting to write.
+     */
+    public WriteCoalescing(int maximumBatchBytes, long maximumDelayMicros) {
+        if (maximumBatchBytes <= 0 || maximumDelayMicros < 0) {
+            throw new IllegalArgumentException("maximumBatchBytes=" + maximumBatchBytes
+                                               + ", maximumDelayMicros=" + maximumDelayMicros);
+        }
+        _maximumBatchBytes = maximumBatchBytes;
+        _maximumDelayNanos = TimeUnit.MICROSECONDS.toNanos(maximumDelayMicros);
+    }
+
+    public int getMaximumBatchBytes() {
+        return _maximumBatchBytes;
+    }
+
+    public long getMaximumDelayMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(_maximumDelayNanos);
+    }
+
+    long maximumDelayNanos() {
+        return _maximumDelayNanos;
+    }
+
+    static void schedule(Runnable flush, long delayNanos) {
+        ScheduledExecutorService timer = TIMER.get();
+        if (timer == null) {
+            ThreadFactory tf = new NamedThreadFactory("write-coalescing", Thread.MAX_PRIORITY, true);
+            timer = Executors.newSingleThreadScheduledExecutor(tf);
+            if (!TIMER.compareAndSet(null, timer)) {
+                timer.shutdown();
+                timer = TIMER.get();
+            }
+        }
+        timer.schedule(flush, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordBatch(int messages) {
+        if (messages > 0) {
+            int bucket = 31 - Integer.numberOfLeadingZeros(messages);
+            _batchSizes.incrementAndGet(bucket < BUCKETS ? bucket : BUCKETS - 1);
+        }
+    }
+
+    /**
+     * @return the number of writes by batch size, where element i counts the writes of
+     *         2^i to 2^(i+1)-1 messages. The last element counts all larger batches.
+     */
+    public long[] getBatchSizeHistogram() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = _batchSizes.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * @return the number of writes of more than one message.
+     */
+    public long getCoalescedWrites() {
+        long writes = 0;
+        for (int i = 1; i < BUCKETS; i++) {
+            writes += _batchSizes.get(i);
+        }
+        return writes;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("WriteCoalescing{bytes=").append(_maximumBatchBytes);
+        sb.append(", delayMicros=").append(getMaximumDelayMicros()).append(", batches={");
+        String sep = "";
+        for (int i = 0; i < BUCKETS; i++) {
+            long writes = _batchSizes.get(i);
+            if (writes > 0) {
+                sb.append(sep).append(1 << i);
+                if (i > 0) {
+                    sb.append(i < BUCKETS - 1 ? "-" + ((2 << i) - 1) : "+");
+                }
+                sb.append('=').append(writes);
+                sep = ", ";
+            }
+        }
+        return sb.append("}}").toString();
+    }
+}
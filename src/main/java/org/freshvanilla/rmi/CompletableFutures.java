@@ -0,0 +1,88 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.rmi;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+import org.freshvanilla.utils.Callback;
+import org.freshvanilla.utils.Classes;
+
+/**
+ * All use of CompletableFuture, which needs Java 8, is kept in this class. Methods which
+ * return one are recognised by the name of their return type, see
+ * RmiInvocationHandler.isCompletionStage(), so this class is only loaded when there are
+ * such methods and everything else still runs on older JVMs.
+ */
+final class CompletableFutures {
+
+    private CompletableFutures() {
+        // not used
+    }
+
+    /**
+     * @return a callback completing a new CompletableFuture with the reply.
+     */
+    static FutureCallback newFutureCallback(Class<?> replyType) {
+        return new FutureCallback(replyType);
+    }
+
+    /**
+     * Calls back with the outcome of a CompletionStage once it completes.
+     */
+    @SuppressWarnings("unchecked")
+    static void whenComplete(Object stage, final Callback<Object> callback) {
+        ((CompletionStage<Object>)stage).whenComplete(new BiConsumer<Object, Throwable>() {
+            public void accept(Object result, Throwable t) {
+                if (t == null) {
+                    try {
+                        callback.onCallback(result);
+                    }
+                    catch (Exception e) {
+                        callback.onException(e);
+                    }
+                    return;
+                }
+                // the exception the provider completed its future with.
+                if ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+                    t = t.getCause();
+                }
+                callback.onException(t);
+            }
+        });
+    }
+
+    static class FutureCallback implements Callback<Object> {
+        final CompletableFuture<Object> future = new CompletableFuture<Object>();
+        private final Class<?> _replyType;
+
+        FutureCallback(Class<?> replyType) {
+            _replyType = replyType;
+        }
+
+        public void onCallback(Object reply) {
+            future.complete(Classes.parseAs(reply, _replyType));
+        }
+
+        public void onException(Throwable t) {
+            future.completeExceptionally(t);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.rmi;
+
+/**
+ * What an async call does when the maximum number of async calls are already waiting
+ * for their replies.
+ */
+public enum InFlightPolicy {
+    /**
+     * Waits for a reply to another call.
+     */
+    BLOCK,
+    /**
+     * Throws a RejectedExecutionException.
+     */
+    FAIL_FAST,
+    /**
+     * Isn't sent and its callback is given a RejectedExecutionException.
+     */
+    REJECT
+}
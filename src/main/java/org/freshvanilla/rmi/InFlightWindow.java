@@ -0,0 +1,114 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.rmi;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.freshvanilla.utils.Callback;
+
+/**
+ * Bounds the number of async calls waiting for their replies. A permit is taken when a
+ * call is sent and given back when its callback is called, whether with the reply, a
+ * timeout or because the connection closed.
+ */
+class InFlightWindow {
+    private final int _maximum;
+    private final InFlightPolicy _policy;
+    // fair, so blocked callers go in the order they arrived.
+    private final Semaphore _permits;
+
+    InFlightWindow(int maximum, InFlightPolicy policy) {
+        _maximum = maximum;
+        _policy = policy;
+        _permits = new Semaphore(maximum, true);
+    }
+
+    int getMaximum() {
+        return _maximum;
+    }
+
+    InFlightPolicy getPolicy() {
+        return _policy;
+    }
+
+    int depth() {
+        return _maximum - _permits.availablePermits();
+    }
+
+    /**
+     * @return false if the call is rejected and its callback has been told.
+     * @throws RejectedExecutionException if the window is full and the policy is FAIL_FAST.
+     */
+    boolean acquire(Callback<?> callback) throws InterruptedException {
+        switch (_policy) {
+            case BLOCK:
+                _permits.acquire();
+                return true;
+
+            case FAIL_FAST:
+                if (!_permits.tryAcquire()) {
+                    throw new RejectedExecutionException(_maximum + " async calls are already in flight");
+                }
+                return true;
+
+            default:
+                if (_permits.tryAcquire()) {
+                    return true;
+                }
+                callback.onException(new RejectedExecutionException(_maximum
+                                                                    + " async calls are already in flight"));
+                return false;
+        }
+    }
+
+    void release() {
+        _permits.release();
+    }
+
+    /**
+     * Gives the permit of a call back when its callback is first called.
+     */
+    static class WindowCallback<T> implements Callback<T> {
+        private final Callback<T> _callback;
+        private final InFlightWindow _window;
+        // the callback is called once, unless onCallback() throws and then onException() is.
+        private boolean _released = false;
+
+        WindowCallback(Callback<T> callback, InFlightWindow window) {
+            _callback = callback;
+            _window = window;
+        }
+
+        private void release() {
+            if (!_released) {
+                _released = true;
+                _window.release();
+            }
+        }
+
+        public void onCallback(T t) throws Exception {
+            release();
+            _callback.onCallback(t);
+        }
+
+        public void onException(Throwable t) {
+            release();
+            _callback.onException(t);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.rmi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * All use of java.lang.invoke, which needs Java 7, is kept in this class. The server only
+ * loads it when the JVM has MethodHandles, so everything else still runs on older JVMs.
+ */
+final class MethodHandleInvoker implements MethodInvoker {
+
+    // the method bound to its provider, taking its arguments as an Object[] and returning an Object.
+    private final MethodHandle _handle;
+
+    private MethodHandleInvoker(MethodHandle handle) {
+        _handle = handle;
+    }
+
+    /**
+     * @return an invoker calling method on provider through a MethodHandle.
+     * @throws IllegalAccessException if the method can't be looked up.
+     */
+    static MethodInvoker newInvoker(Method method, Object provider) throws IllegalAccessException {
+        MethodHandle handle = MethodHandles.lookup().unreflect(method).bindTo(provider);
+        // boxes the arguments and the result, then takes the arguments as one array.
+        handle = handle.asType(handle.type().generic());
+        return new MethodHandleInvoker(handle.asSpreader(Object[].class, method.getParameterTypes().length));
+    }
+
+    public Object invoke(Object[] args) throws Throwable {
+        return (Object)_handle.invokeExact(args);
+    }
+}
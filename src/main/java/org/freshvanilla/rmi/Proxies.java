@@ -22,6 +22,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.freshvanilla.lang.MetaClasses;
 import org.freshvanilla.net.CachedDataSocketFactory;
+import org.freshvanilla.net.DataServerMode;
 import org.freshvanilla.net.DataSocket;
 import org.freshvanilla.utils.Classes;
 import org.freshvanilla.utils.Factory;
@@ -37,6 +38,11 @@ public class Proxies {
         return new VanillaRmiServer<P>(name, port, provider, classLoader);
     }
 
+    public static <P> VanillaRmiServer<P> newServer(String name, int port, P provider, DataServerMode mode)
+        throws IOException {
+        return new VanillaRmiServer<P>(name, port, provider, Classes.getClassLoader(provider.getClass()), mode);
+    }
+
     public static <I> I newClient(String name, String connectionString, Class<I> serviceInterface) {
         ClassLoader cl = Classes.getClassLoader(serviceInterface);
         return newClient(name, connectionString, cl, serviceInterface);
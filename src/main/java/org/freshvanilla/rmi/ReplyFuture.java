@@ -0,0 +1,98 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.rmi;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.freshvanilla.utils.Callback;
+import org.freshvanilla.utils.Classes;
+
+/**
+ * The Future returned by a client method declared to return one, completed by the reply.
+ * Cancelling it only stops waiting; the call has already been sent.
+ */
+class ReplyFuture implements Future<Object>, Callback<Object> {
+    private final Class<?> _replyType;
+    private final CountDownLatch _done = new CountDownLatch(1);
+    // published by _done
+    private Object _reply = null;
+    private Throwable _exception = null;
+    private boolean _cancelled = false;
+
+    ReplyFuture(Class<?> replyType) {
+        _replyType = replyType;
+    }
+
+    public void onCallback(Object reply) {
+        complete(Classes.parseAs(reply, _replyType), null, false);
+    }
+
+    public void onException(Throwable t) {
+        complete(null, t, false);
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, null, true);
+    }
+
+    private synchronized boolean complete(Object reply, Throwable exception, boolean cancelled) {
+        if (_done.getCount() == 0) {
+            return false;
+        }
+        _reply = reply;
+        _exception = exception;
+        _cancelled = cancelled;
+        _done.countDown();
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return isDone() && _cancelled;
+    }
+
+    public boolean isDone() {
+        return _done.getCount() == 0;
+    }
+
+    public Object get() throws InterruptedException, ExecutionException {
+        _done.await();
+        return result();
+    }
+
+    public Object get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+        if (!_done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Object result() throws ExecutionException {
+        if (_cancelled) {
+            throw new CancellationException();
+        }
+        if (_exception != null) {
+            throw new ExecutionException(_exception);
+        }
+        return _reply;
+    }
+}
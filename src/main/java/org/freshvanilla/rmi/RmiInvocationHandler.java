@@ -17,16 +17,25 @@
 package org.freshvanilla.rmi;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.freshvanilla.net.DataSocket;
 import org.freshvanilla.net.DataSockets;
 import org.freshvanilla.net.WireFormat;
+import org.freshvanilla.net.WriteCoalescing;
 import org.freshvanilla.utils.Callback;
 import org.freshvanilla.utils.Classes;
 import org.freshvanilla.utils.Factory;
@@ -38,10 +47,20 @@ public class RmiInvocationHandler implements InvocationHandler, Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(RmiInvocationHandler.class);
 
     private static final Object[] NO_OBJECTS = {};
+    private static final String SYNC_SOCKET = "sync-org.freshvanilla.rmi";
+    private static final String ASYNC_SOCKET = "async-org.freshvanilla.rmi";
+    private static final String MULTIPLEXED_SOCKET = "multiplexed-org.freshvanilla.rmi";
 
     private final Factory<String, DataSocket> _factory;
     private final boolean _closeFactory;
     private final ConcurrentMap<Method, RmiMethod> _rmiMethodMap;
+    // the methods called so far, indexed by their _ordinal.
+    private volatile RmiMethod[] _rmiMethods = {};
+    private final AtomicInteger _nextSharedSocket = new AtomicInteger();
+    private volatile AtomicReferenceArray<DataSocket> _sharedSockets = null;
+    private volatile long _callbackTimeoutMillis = 0;
+    private volatile InFlightWindow _inFlightWindow = null;
+    private volatile WriteCoalescing _writeCoalescing = null;
 
     public RmiInvocationHandler(Factory<String, DataSocket> factory, boolean closeFactory) {
         _factory = factory;
@@ -59,72 +78,366 @@ public class RmiInvocationHandler implements InvocationHandler, Closeable {
         }
     }
 
+    public int getMultiplexedConnections() {
+        AtomicReferenceArray<DataSocket> sharedSockets = _sharedSockets;
+        return sharedSockets == null ? 0 : sharedSockets.length();
+    }
+
+    /**
+     * Shares the given number of connections between all synchronous callers. A caller
+     * holds a connection only while its request is written and then parks until the reply
+     * is routed back by sequence number, so hundreds of callers can share a few connections.
+     * The connections are held until close() so there should be no more than the factory
+     * will create. 0, the default, acquires a connection for each call.
+     */
+    public void setMultiplexedConnections(int connections) {
+        AtomicReferenceArray<DataSocket> previous = _sharedSockets;
+        _sharedSockets = connections > 0 ? new AtomicReferenceArray<DataSocket>(connections) : null;
+        recycleAll(previous);
+    }
+
+    public long getCallbackTimeoutMillis() {
+        return _callbackTimeoutMillis;
+    }
+
+    /**
+     * Fails the callbacks of async calls, and multiplexed callers, with a TimeoutException
+     * when no reply has been read after this many milliseconds. 0, the default, waits forever.
+     * A method's own timeout can be given with the Timeout annotation.
+     */
+    public void setCallbackTimeoutMillis(long callbackTimeoutMillis) {
+        _callbackTimeoutMillis = callbackTimeoutMillis;
+    }
+
+    public int getMaximumInFlight() {
+        InFlightWindow window = _inFlightWindow;
+        return window == null ? 0 : window.getMaximum();
+    }
+
+    public InFlightPolicy getInFlightPolicy() {
+        InFlightWindow window = _inFlightWindow;
+        return window == null ? null : window.getPolicy();
+    }
+
+    /**
+     * @return the number of async calls waiting for their replies, if they are limited.
+     */
+    public int getInFlightCalls() {
+        InFlightWindow window = _inFlightWindow;
+        return window == null ? 0 : window.depth();
+    }
+
+    /**
+     * Limits the number of async calls waiting for their replies, so a slow server can't
+     * have replies queue up without end. Calls already in flight count against the previous
+     * limit only.
+     *
+     * @param maximum the number of calls allowed in flight, or 0 for no limit, the default.
+     * @param policy what a call past the limit does.
+     */
+    public void setMaximumInFlight(int maximum, InFlightPolicy policy) {
+        _inFlightWindow = maximum > 0 ? new InFlightWindow(maximum, policy) : null;
+    }
+
+    public WriteCoalescing getWriteCoalescing() {
+        return _writeCoalescing;
+    }
+
+    /**
+     * Coalesces the requests written to the multiplexed connections by concurrent callers,
+     * and by calls made within the WriteCoalescing's delay, so several are sent by one write.
+     * While it is set, async calls are sent on the multiplexed connections too. It has no
+     * effect without multiplexed connections.
+     *
+     * @param coalescing how requests are coalesced, or null to write each one as it is made.
+     */
+    public void setWriteCoalescing(WriteCoalescing coalescing) {
+        _writeCoalescing = coalescing;
+
+        AtomicReferenceArray<DataSocket> sharedSockets = _sharedSockets;
+        if (sharedSockets != null) {
+            synchronized (sharedSockets) {
+                for (int i = 0; i < sharedSockets.length(); i++) {
+                    DataSocket ds = sharedSockets.get(i);
+                    if (ds != null) {
+                        ds.setWriteCoalescing(coalescing);
+                    }
+                }
+            }
+        }
+    }
+
+    private long timeoutMillis(RmiMethod rmiMethod) {
+        return rmiMethod._timeoutMillis >= 0 ? rmiMethod._timeoutMillis : _callbackTimeoutMillis;
+    }
+
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
         RmiMethod rmiMethod = getRmiMethod(method);
-        boolean async = rmiMethod._async;
 
         if (args == null) {
             args = NO_OBJECTS;
         }
 
-        int argsLength = args.length - (async ? 1 : 0);
-        DataSocket ds = _factory.acquire(async ? "async-org.freshvanilla.rmi" : "sync-org.freshvanilla.rmi");
+        if (rmiMethod._async) {
+            return invokeAsync(rmiMethod, args, args.length - 1, (Callback<?>)args[args.length - 1]);
+        }
 
-        try {
-            final long sequenceNumber = (async ? ds.microTimestamp() : 0);
-
-            if (async) {
-                Callback<?> callback = (Callback<?>)args[argsLength];
-                ds.addCallback(sequenceNumber, callback);
-                // TODO silly: although this is needed only exactly once, it is done on
-                // each call simply because the DataSocket creates its Executor for
-                // reading async replies lazily.
-                // Should probably configure a shared Executor on the DataSocketFactory
-                // and have it inject that into all acquired() DataSockets; that would
-                // bound the number of created Executors and avoid slamming into the
-                // same synchronized block (checking for the Executor) on every call.
-                // Then should have a simple boolean hasReader() on DataSocket so that
-                // callers like this one can do it only once. Ideally the RmiCallback
-                // would be created & set by the DataSocket itself on the first call to
-                // addCallback().
-                ds.setReader(new RmiCallback(ds));
-            }
+        if (rmiMethod._completionStage) {
+            CompletableFutures.FutureCallback callback = CompletableFutures.newFutureCallback(rmiMethod._replyType);
+            invokeAsync(rmiMethod, args, args.length, callback);
+            return callback.future;
+        }
 
-            WireFormat wf = ds.wireFormat();
-            ByteBuffer wb = ds.writeBuffer();
-            wf.writeNum(wb, sequenceNumber);
-            wf.writeTag(wb, rmiMethod._methodName);
-            wf.writeArray(wb, argsLength, args);
-            wf.flush(ds, wb);
+        if (rmiMethod._future) {
+            ReplyFuture future = new ReplyFuture(rmiMethod._replyType);
+            invokeAsync(rmiMethod, args, args.length, future);
+            return future;
+        }
 
-            if (async) {
-                return null;
+        AtomicReferenceArray<DataSocket> sharedSockets = _sharedSockets;
+        if (sharedSockets != null) {
+            return invokeMultiplexed(sharedSockets, rmiMethod, args);
+        }
+
+        DataSocket ds = _factory.acquire(SYNC_SOCKET);
+
+        try {
+            // the socket's write buffer is only released under its lock.
+            ds.lockWrite();
+            try {
+                if (rmiMethod._oneWay && supportsOneWay(ds)) {
+                    writeRequest(ds, VanillaRmiServer.ONE_WAY_SEQUENCE, rmiMethod, args.length, args);
+                    return null;
+                }
+
+                writeRequest(ds, 0, rmiMethod, args.length, args);
+            }
+            finally {
+                ds.unlockWrite();
             }
 
             ByteBuffer rb = ds.read();
+            WireFormat wf = ds.wireFormat();
             long sequenceNumber2 = wf.readNum(rb);
             assert sequenceNumber2 == 0;
             boolean success = wf.readBoolean(rb);
             Object reply = wf.readObject(rb);
+            return parseReply(ds, rmiMethod, success, reply);
+        }
+        finally {
+            _factory.recycle(ds);
+        }
+    }
 
-            if (success) {
-                return Classes.parseAs(reply, rmiMethod._returnType);
+    /**
+     * Sends a call whose reply is passed to the callback by the socket's reader.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Object invokeAsync(RmiMethod rmiMethod, Object[] args, int argsLength, Callback callback)
+        throws Throwable {
+        final InFlightWindow window = _inFlightWindow;
+
+        if (window != null) {
+            if (!window.acquire(callback)) {
+                return null;
+            }
+            callback = new InFlightWindow.WindowCallback(callback, window);
+        }
+
+        // coalesced requests are written to the connections shared with other callers.
+        final AtomicReferenceArray<DataSocket> sharedSockets = _writeCoalescing != null ? _sharedSockets : null;
+        DataSocket ds = null;
+        long sequenceNumber = 0;
+        boolean added = false;
+
+        try {
+            if (sharedSockets != null) {
+                ds = sharedSocket(sharedSockets);
+            }
+            else {
+                ds = _factory.acquire(ASYNC_SOCKET);
+            }
+            sequenceNumber = ds.microTimestamp();
+            ds.addCallback(sequenceNumber, callback, timeoutMillis(rmiMethod));
+            added = true;
+            if (!ds.hasReader()) {
+                ds.setReader(new RmiCallback(ds));
             }
 
-            if (reply instanceof Throwable) {
-                Throwable t = (Throwable)reply;
-                DataSockets.appendStackTrace(ds, t);
+            ds.lockWrite();
+            try {
+                writeRequest(ds, sequenceNumber, rmiMethod, argsLength, args);
+            }
+            catch (Throwable t) {
+                // before unlocking closes the socket if the request was sent in part, which
+                // would fail the callback as well.
+                if (ds.removeCallback(sequenceNumber) != null) {
+                    added = false;
+                }
                 throw t;
             }
+            finally {
+                ds.unlockWrite();
+            }
+            return null;
+        }
+        catch (Throwable t) {
+            // the call wasn't sent, so it no longer waits for a reply.
+            boolean removed = !added || ds.removeCallback(sequenceNumber) != null;
+            if (removed && window != null) {
+                window.release();
+            }
+            throw t;
+        }
+        finally {
+            if (ds != null && sharedSockets == null) {
+                _factory.recycle(ds);
+            }
+        }
+    }
+
+    private Object invokeMultiplexed(AtomicReferenceArray<DataSocket> sharedSockets,
+                                     RmiMethod rmiMethod,
+                                     Object[] args) throws Throwable {
+        DataSocket ds = sharedSocket(sharedSockets);
+        SyncReply syncReply = new SyncReply();
+
+        // only the write is exclusive, the reply is read by the socket's reader.
+        ds.lockWrite();
+        try {
+            if (rmiMethod._oneWay && supportsOneWay(ds)) {
+                writeRequest(ds, VanillaRmiServer.ONE_WAY_SEQUENCE, rmiMethod, args.length, args);
+                return null;
+            }
 
-            throw new AssertionError(reply);
+            final long sequenceNumber = ds.microTimestamp();
+            ds.addCallback(sequenceNumber, syncReply, timeoutMillis(rmiMethod));
+
+            try {
+                writeRequest(ds, sequenceNumber, rmiMethod, args.length, args);
+            }
+            catch (Throwable t) {
+                ds.removeCallback(sequenceNumber);
+                throw t;
+            }
+
+            // the socket may have failed its callbacks before ours was added.
+            if (ds.isClosed() && ds.removeCallback(sequenceNumber) != null) {
+                throw new IllegalStateException(ds.getName() + " is closed!");
+            }
         }
         finally {
-            _factory.recycle(ds);
+            ds.unlockWrite();
         }
+
+        syncReply.await();
+        return parseReply(ds, rmiMethod, syncReply._success, syncReply._reply);
+    }
+
+    private DataSocket sharedSocket(AtomicReferenceArray<DataSocket> sharedSockets) throws Exception {
+        int slot = (_nextSharedSocket.getAndIncrement() & Integer.MAX_VALUE) % sharedSockets.length();
+        DataSocket ds = sharedSockets.get(slot);
+
+        if (ds != null && !ds.isClosed()) {
+            return ds;
+        }
+
+        synchronized (sharedSockets) {
+            ds = sharedSockets.get(slot);
+            if (ds == null || ds.isClosed()) {
+                if (ds != null) {
+                    _factory.recycle(ds);
+                }
+                ds = _factory.acquire(MULTIPLEXED_SOCKET);
+                ds.setWriteCoalescing(_writeCoalescing);
+                if (!ds.hasReader()) {
+                    ds.setReader(new RmiCallback(ds));
+                }
+                sharedSockets.set(slot, ds);
+            }
+            return ds;
+        }
+    }
+
+    private void recycleAll(AtomicReferenceArray<DataSocket> sharedSockets) {
+        if (sharedSockets == null) {
+            return;
+        }
+
+        synchronized (sharedSockets) {
+            for (int i = 0; i < sharedSockets.length(); i++) {
+                DataSocket ds = sharedSockets.getAndSet(i, null);
+                if (ds != null) {
+                    // writes anything held back before others can use it.
+                    ds.setWriteCoalescing(null);
+                    _factory.recycle(ds);
+                }
+            }
+        }
+    }
+
+    private static boolean supportsOneWay(DataSocket ds) {
+        Map<String, Object> otherHeader = ds.getOtherHeader();
+        return otherHeader != null && Boolean.TRUE.equals(otherHeader.get(VanillaRmiServer.ONE_WAY_HEADER));
+    }
+
+    private void writeRequest(DataSocket ds,
+                              long sequenceNumber,
+                              RmiMethod rmiMethod,
+                              int argsLength,
+                              Object[] args) throws IOException {
+        WireFormat wf = ds.wireFormat();
+        ByteBuffer wb = ds.writeBuffer();
+        wf.writeNum(wb, sequenceNumber);
+        int methodId = methodId(ds, rmiMethod);
+        if (methodId >= 0) {
+            wf.writeNum(wb, methodId);
+        }
+        else {
+            wf.writeTag(wb, rmiMethod._methodName);
+        }
+        wf.writeArray(wb, argsLength, args);
+        wf.flush(ds, wb);
+    }
+
+    /**
+     * @return the id the server on the other end of ds gave the method, or -1 if it has none
+     *         and the method has to be found by name.
+     */
+    private int methodId(DataSocket ds, RmiMethod rmiMethod) {
+        Object attachment = ds.getAttachment();
+        MethodTable table = attachment instanceof MethodTable ? (MethodTable)attachment : null;
+
+        // resolved again when methods are called for the first time, or the socket is shared
+        // with another handler.
+        if (table == null || table._handler != this || rmiMethod._ordinal >= table._ids.length) {
+            table = new MethodTable(this, ds.getOtherHeader(), _rmiMethods);
+            ds.setAttachment(table);
+        }
+
+        return table._ids[rmiMethod._ordinal];
+    }
+
+    private static Object parseReply(DataSocket ds, RmiMethod rmiMethod, boolean success, Object reply)
+        throws Throwable {
+        if (success) {
+            return Classes.parseAs(reply, rmiMethod._replyType);
+        }
+
+        if (reply instanceof Throwable) {
+            Throwable t = (Throwable)reply;
+            DataSockets.appendStackTrace(ds, t);
+            throw t;
+        }
+
+        throw new AssertionError(reply);
     }
 
     public void close() {
+        AtomicReferenceArray<DataSocket> sharedSockets = _sharedSockets;
+        _sharedSockets = null;
+        recycleAll(sharedSockets);
+
         if (_closeFactory) {
             _factory.close();
         }
@@ -133,16 +446,32 @@ public class RmiInvocationHandler implements InvocationHandler, Closeable {
     private RmiMethod getRmiMethod(Method method) {
         RmiMethod ret = _rmiMethodMap.get(method);
         if (ret == null) {
-            ret = new RmiMethod(method.getName(), method.getReturnType(), method.getParameterTypes());
-            RmiMethod prev = _rmiMethodMap.putIfAbsent(method, ret);
-            if (prev != null) {
-                ret = prev;
+            Timeout timeout = method.getAnnotation(Timeout.class);
+            boolean oneWay = method.getAnnotation(OneWay.class) != null;
+            if (oneWay && method.getReturnType() != void.class) {
+                throw new IllegalArgumentException("OneWay method " + method + " must return void");
+            }
+            synchronized (_rmiMethodMap) {
+                ret = _rmiMethodMap.get(method);
+                if (ret == null) {
+                    RmiMethod[] rmiMethods = _rmiMethods;
+                    ret = new RmiMethod(method.getName(), method.getReturnType(),
+                        method.getGenericReturnType(), method.getParameterTypes(),
+                        timeout == null ? -1 : timeout.value(), oneWay, rmiMethods.length);
+                    RmiMethod[] rmiMethods2 = new RmiMethod[rmiMethods.length + 1];
+                    System.arraycopy(rmiMethods, 0, rmiMethods2, 0, rmiMethods.length);
+                    rmiMethods2[ret._ordinal] = ret;
+                    // published before the method can be called.
+                    _rmiMethods = rmiMethods2;
+                    _rmiMethodMap.put(method, ret);
+                }
             }
         }
         return ret;
     }
 
-    // Reader for replies to async calls on a given DataSocket
+    // Reader for replies to async calls on a given DataSocket. Callbacks other than those
+    // of parked callers are run by the socket's callbackExecutor().
     static class RmiCallback implements Callback<DataSocket> {
 
         private final DataSocket ds;
@@ -151,7 +480,7 @@ public class RmiInvocationHandler implements InvocationHandler, Closeable {
             this.ds = ds;
         }
 
-        @SuppressWarnings({"unchecked", "rawtypes"})
+        @SuppressWarnings("rawtypes")
         public void onCallback(DataSocket dataSocket) throws Exception {
             Callback callback = null;
 
@@ -167,11 +496,11 @@ public class RmiInvocationHandler implements InvocationHandler, Closeable {
                 if (callback == null) {
                     LOG.error("Response to unknown callback reply=" + reply);
                 }
-                else if (success) {
-                    callback.onCallback(reply);
+                else if (callback instanceof SyncReply) {
+                    reply(callback, success, reply);
                 }
                 else {
-                    callback.onException((Throwable)reply);
+                    ds.callbackExecutor().execute(new ReplyRunnable(callback, success, reply));
                 }
             }
             catch (Exception e) {
@@ -181,14 +510,7 @@ public class RmiInvocationHandler implements InvocationHandler, Closeable {
                 if (!(e instanceof AsynchronousCloseException)) {
                     LOG.error("Exception thrown processing callback", e);
                 }
-                try {
-                    if (callback != null) {
-                        callback.onException(e);
-                    }
-                }
-                catch (Exception ignored) {
-                    // ignored.
-                }
+                failed(callback, e);
             }
         }
 
@@ -197,6 +519,98 @@ public class RmiInvocationHandler implements InvocationHandler, Closeable {
         }
     }
 
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static void reply(Callback callback, boolean success, Object reply) {
+        try {
+            if (success) {
+                callback.onCallback(reply);
+            }
+            else {
+                callback.onException((Throwable)reply);
+            }
+        }
+        catch (Exception e) {
+            LOG.error("Exception thrown processing callback", e);
+            failed(callback, e);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    static void failed(Callback callback, Exception e) {
+        try {
+            if (callback != null) {
+                callback.onException(e);
+            }
+        }
+        catch (Exception ignored) {
+            // ignored.
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    static class ReplyRunnable implements Runnable {
+        private final Callback _callback;
+        private final boolean _success;
+        private final Object _reply;
+
+        ReplyRunnable(Callback callback, boolean success, Object reply) {
+            _callback = callback;
+            _success = success;
+            _reply = reply;
+        }
+
+        public void run() {
+            reply(_callback, _success, _reply);
+        }
+    }
+
+    // Parks a synchronous caller until the reader thread hands it the reply.
+    static class SyncReply implements Callback<Object> {
+        private final Thread _caller = Thread.currentThread();
+        private volatile boolean _done = false;
+        // published by the write to _done
+        boolean _success = false;
+        Object _reply = null;
+
+        public void onCallback(Object reply) {
+            _success = true;
+            _reply = reply;
+            _done = true;
+            LockSupport.unpark(_caller);
+        }
+
+        public void onException(Throwable t) {
+            _reply = t;
+            _done = true;
+            LockSupport.unpark(_caller);
+        }
+
+        void await() {
+            boolean interrupted = false;
+
+            while (!_done) {
+                LockSupport.park();
+                if (Thread.interrupted()) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return whether type is CompletionStage or CompletableFuture, by name so neither is
+     *         loaded, nor CompletableFutures, on a JVM without them.
+     */
+    static boolean isCompletionStage(Class<?> type) {
+        String name = type.getName();
+        return name.equals("java.util.concurrent.CompletionStage")
+               || name.equals("java.util.concurrent.CompletableFuture");
+    }
+
     // Wrapper for snapshotting Method name/parameters. Not necessary except for the fact
     // that Method.getParameterTypes() creates a new array on every call.
     static class RmiMethod {
@@ -204,12 +618,69 @@ public class RmiInvocationHandler implements InvocationHandler, Closeable {
         public final Class<?> _returnType;
         public final Class<?>[] _parameterTypes;
         public final boolean _async;
-
-        RmiMethod(String methodName, Class<?> returnType, Class<?>[] parameterTypes) {
+        public final String _signature;
+        // -1 to use the handler's timeout.
+        public final long _timeoutMillis;
+        // returns a Future, or a CompletionStage, completed by the reply.
+        public final boolean _future;
+        public final boolean _completionStage;
+        // the type of the reply, the type argument of a Future.
+        public final Class<?> _replyType;
+        // sent without waiting for a reply, when the server supports it.
+        public final boolean _oneWay;
+        // the index of this method in its handler's methods, and in each MethodTable.
+        public final int _ordinal;
+
+        RmiMethod(String methodName,
+                  Class<?> returnType,
+                  Type genericReturnType,
+                  Class<?>[] parameterTypes,
+                  long timeoutMillis,
+                  boolean oneWay,
+                  int ordinal) {
             _methodName = methodName;
+            _ordinal = ordinal;
+            _timeoutMillis = timeoutMillis;
+            _oneWay = oneWay;
             _returnType = returnType;
+            _completionStage = isCompletionStage(returnType);
+            _future = _completionStage || returnType == Future.class;
+            _replyType = _future ? typeArgument(genericReturnType) : returnType;
             _parameterTypes = parameterTypes;
             _async = (parameterTypes.length > 0 && parameterTypes[parameterTypes.length - 1] == Callback.class);
+            _signature = Classes.methodSignature(methodName, parameterTypes, parameterTypes.length
+                                                                             - (_async ? 1 : 0));
+        }
+
+        private static Class<?> typeArgument(Type type) {
+            if (type instanceof ParameterizedType) {
+                Type argument = ((ParameterizedType)type).getActualTypeArguments()[0];
+                if (argument instanceof ParameterizedType) {
+                    argument = ((ParameterizedType)argument).getRawType();
+                }
+                if (argument instanceof Class<?>) {
+                    return (Class<?>)argument;
+                }
+            }
+            return Object.class;
+        }
+    }
+
+    // The ids a server gave the methods of a handler, resolved once per connection.
+    static class MethodTable {
+        final RmiInvocationHandler _handler;
+        // -1 for methods the server has no id for.
+        final int[] _ids;
+
+        MethodTable(RmiInvocationHandler handler, Map<String, Object> otherHeader, RmiMethod[] rmiMethods) {
+            _handler = handler;
+            _ids = new int[rmiMethods.length];
+
+            Object methods = otherHeader == null ? null : otherHeader.get(VanillaRmiServer.METHODS_HEADER);
+            for (int i = 0; i < rmiMethods.length; i++) {
+                Object id = methods instanceof Map<?, ?> ? ((Map<?, ?>)methods).get(rmiMethods[i]._signature) : null;
+                _ids[i] = id instanceof Number ? ((Number)id).intValue() : -1;
+            }
         }
     }
 
@@ -18,51 +18,116 @@ package org.freshvanilla.rmi;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.freshvanilla.lang.MetaClasses;
 import org.freshvanilla.net.BinaryWireFormat;
+import org.freshvanilla.net.DataServerMode;
 import org.freshvanilla.net.DataSocket;
 import org.freshvanilla.net.DataSocketFactory;
 import org.freshvanilla.net.DataSocketHandler;
+import org.freshvanilla.net.SerializerRegistry;
 import org.freshvanilla.net.VanillaDataServerSocket;
 import org.freshvanilla.net.WireFormat;
+import org.freshvanilla.utils.Callback;
 import org.freshvanilla.utils.Classes;
 import org.freshvanilla.utils.Classes.MetaMethod;
 import org.freshvanilla.utils.Factory;
+import org.freshvanilla.utils.SerialExecutor;
 import org.freshvanilla.utils.VanillaResource;
 
 public class VanillaRmiServer<P> extends VanillaResource implements Factory<DataSocket, DataSocketHandler> {
 
+    // header key for the map of method signatures to ids.
+    static final String METHODS_HEADER = "methods";
+    // header key present when requests with ONE_WAY_SEQUENCE are not replied to.
+    static final String ONE_WAY_HEADER = "one-way";
+    static final long ONE_WAY_SEQUENCE = -1;
+
     private final VanillaDataServerSocket _serverSocket;
+    private final BinaryWireFormat.Builder _wireFormatBuilder;
     private final P _provider;
     private final AtomicInteger _id = new AtomicInteger();
-    private final List<MetaMethod<?>> _memberMethods;
+    private final ServerMethod[] _methods;
+    private volatile Executor _executor = null;
 
     public VanillaRmiServer(String name, int port, P provider) throws IOException {
         this(name, port, provider, Classes.getClassLoader(provider.getClass()));
     }
 
     public VanillaRmiServer(String name, int port, P provider, ClassLoader classLoader) throws IOException {
+        this(name, port, provider, classLoader, DataServerMode.THREAD_PER_CONNECTION);
+    }
+
+    public VanillaRmiServer(String name, int port, P provider, ClassLoader classLoader, DataServerMode mode)
+        throws IOException {
         super(name);
         _provider = provider;
-        _memberMethods = Classes.getMemberMethods(provider.getClass());
-        _serverSocket = new VanillaDataServerSocket(name, this, new HashMap<String, Object>(), port,
-            new BinaryWireFormat.Builder(name, new MetaClasses(classLoader)),
-            DataSocketFactory.DEFAULT_MAXIMUM_MESSAGE_SIZE);
+        List<MetaMethod<?>> memberMethods = Classes.getMemberMethods(provider.getClass());
+        _methods = new ServerMethod[memberMethods.size()];
+
+        // clients send the id of a method whose signature matches exactly instead of its name.
+        Map<String, Integer> methodIds = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < _methods.length; i++) {
+            MetaMethod<?> method = memberMethods.get(i);
+            _methods[i] = new ServerMethod(method, provider, ServerMethod.METHOD_HANDLES);
+            if (!method.method.isBridge()) {
+                methodIds.put(method.signature, i);
+            }
+        }
+
+        Map<String, Object> header = new HashMap<String, Object>();
+        header.put(METHODS_HEADER, methodIds);
+        header.put(ONE_WAY_HEADER, Boolean.TRUE);
+
+        _wireFormatBuilder = new BinaryWireFormat.Builder(name, new MetaClasses(classLoader));
+        _serverSocket = new VanillaDataServerSocket(name, this, header, port, _wireFormatBuilder,
+            DataSocketFactory.DEFAULT_MAXIMUM_MESSAGE_SIZE, mode, 0);
     }
 
     public int getPort() {
         return _serverSocket.getPort();
     }
 
+    /**
+     * @return the TypeSerializers of the connections, which have to be registered before
+     *         clients connect.
+     */
+    public SerializerRegistry getSerializers() {
+        return _wireFormatBuilder.getSerializers();
+    }
+
+    public Executor getExecutor() {
+        return _executor;
+    }
+
+    /**
+     * Runs provider methods on the given Executor, such as a fixed pool of worker threads,
+     * rather than on the thread reading the connection. A slow call then doesn't hold up the
+     * requests after it and replies are sent as calls complete, in any order; callers match
+     * them by sequence number. Methods marked Ordered still run one at a time, in the order
+     * their requests arrived on the connection. null, the default, runs methods on the thread
+     * reading the connection. In DataServerMode.SELECTOR that thread is an event loop shared
+     * with other connections, so methods which can block or call back into this server need
+     * an Executor there.
+     */
+    public void setExecutor(Executor executor) {
+        _executor = executor;
+    }
+
     public DataSocketHandler acquire(DataSocket dataSocket) throws InterruptedException {
         return new RmiDataSocketHandler(getName() + ':' + _id.incrementAndGet(), dataSocket);
     }
@@ -88,6 +153,8 @@ public class VanillaRmiServer<P> extends VanillaResource implements Factory<Data
         private final DataSocket _ds;
         private final WireFormat _wf;
         private final Set<OnDisconnectionRunnable> _onDisconnection = new LinkedHashSet<OnDisconnectionRunnable>();
+        // runs the Ordered methods of this connection one at a time, created when first needed.
+        private SerialExecutor _orderedExecutor = null;
 
         private RmiDataSocketHandler(String name, DataSocket ds) {
             super(name);
@@ -110,26 +177,77 @@ public class VanillaRmiServer<P> extends VanillaResource implements Factory<Data
             // TODO: why is this empty?
         }
 
-        @SuppressWarnings({"unchecked", "rawtypes"})
         public void onMessage() throws IOException {
+            try {
+                handleMessage();
+            }
+            finally {
+                // writes the replies held back if this was the last request buffered.
+                _ds.lockWrite();
+                _ds.unlockWrite();
+            }
+        }
+
+        private void handleMessage() throws IOException {
             long sequenceNumber = 0;
-            boolean okay = false;
-            Object result;
+            final ServerMethod method;
+            final Object[] args;
 
             try {
                 final ByteBuffer rb = _ds.read();
                 sequenceNumber = _wf.readNum(rb);
-                String methodName = _wf.readString(rb);
-                final Object[] args = _wf.readArray(rb);
-                final MetaMethod<?> method = getMethodFor(methodName, args);
-                final Class<?>[] types = method.parameterTypes;
+                final Object methodIdOrName = _wf.readObject(rb);
+                args = _wf.readArray(rb);
+                method = getMethodFor(methodIdOrName, args);
+                method.convertArguments(args);
+            }
+            catch (Exception e) {
+                if (e.getClass() == IOException.class || e.getClass() == EOFException.class) {
+                    getLog().debug(getName() + ": Dropping connection as client has disconnected " + e);
+                    close();
+                    return;
+                }
+                writeReply(sequenceNumber, false, e);
+                return;
+            }
+
+            final Executor executor = _executor;
+            if (executor == null || method._onDisconnection) {
+                invoke(sequenceNumber, method, args);
+                return;
+            }
 
-                for (int i = 0; i < args.length; i++) {
-                    args[i] = Classes.parseAs(args[i], types[i]);
+            // the request has been read, so the next one can be while this runs.
+            Runnable invocation = new Invocation(sequenceNumber, method, args);
+            try {
+                if (method._ordered) {
+                    if (_orderedExecutor == null) {
+                        _orderedExecutor = new SerialExecutor(executor);
+                    }
+                    _orderedExecutor.execute(invocation);
+                }
+                else {
+                    executor.execute(invocation);
                 }
+            }
+            catch (RejectedExecutionException e) {
+                writeReply(sequenceNumber, false, e);
+            }
+        }
+
+        void invoke(long sequenceNumber, ServerMethod method, Object[] args) {
+            boolean okay = false;
+            Object result;
 
-                if (method.getAnnotation(OnDisconnection.class) == null) {
-                    result = ((MetaMethod)method).invoke(_provider, args);
+            try {
+                if (!method._onDisconnection) {
+                    result = method.invoke(args);
+
+                    if (method._completionStage && result != null) {
+                        // replied to when it completes, without holding this thread.
+                        CompletableFutures.whenComplete(result, new ReplyCallback(sequenceNumber));
+                        return;
+                    }
                 }
                 else {
                     _onDisconnection.add(new OnDisconnectionRunnable(method, args));
@@ -138,25 +256,55 @@ public class VanillaRmiServer<P> extends VanillaResource implements Factory<Data
 
                 okay = true;
             }
-            catch (InvocationTargetException e) {
-                result = e.getCause();
+            catch (Throwable t) {
+                result = t;
             }
-            catch (Exception e) {
-                if (e.getClass() == IOException.class || e.getClass() == EOFException.class) {
-                    getLog().debug(getName() + ": Dropping connection as client has disconnected " + e);
-                    close();
-                    return;
-                }
-                result = e;
+
+            writeReply(sequenceNumber, okay, result);
+        }
+
+        class Invocation implements Runnable {
+            private final long _sequenceNumber;
+            private final ServerMethod _method;
+            private final Object[] _args;
+
+            Invocation(long sequenceNumber, ServerMethod method, Object[] args) {
+                _sequenceNumber = sequenceNumber;
+                _method = method;
+                _args = args;
+            }
+
+            public void run() {
+                invoke(_sequenceNumber, _method, _args);
             }
+        }
 
-            final ByteBuffer wb = _ds.writeBuffer();
-            _wf.writeNum(wb, sequenceNumber);
-            _wf.writeBoolean(wb, okay);
-            _wf.writeObject(wb, result);
+        // replies may be written by the threads completing futures as well as by onMessage().
+        void writeReply(long sequenceNumber, boolean okay, Object result) {
+            if (sequenceNumber == ONE_WAY_SEQUENCE) {
+                if (!okay) {
+                    getLog().warn(getName() + ": exception thrown by a one way call", (Throwable)result);
+                }
+                return;
+            }
 
             try {
-                _wf.flush(_ds, wb);
+                // held back while more requests are buffered, so their replies are written together.
+                _ds.lockWrite();
+                try {
+                    if (_ds.isClosed()) {
+                        // its write buffer has been released.
+                        throw new ClosedChannelException();
+                    }
+                    final ByteBuffer wb = _ds.writeBuffer();
+                    _wf.writeNum(wb, sequenceNumber);
+                    _wf.writeBoolean(wb, okay);
+                    _wf.writeObject(wb, result);
+                    _wf.flush(_ds, wb);
+                }
+                finally {
+                    _ds.unlockWrite();
+                }
             }
             catch (IOException e) {
                 close();
@@ -168,9 +316,41 @@ public class VanillaRmiServer<P> extends VanillaResource implements Factory<Data
             }
         }
 
-        private MetaMethod<?> getMethodFor(String methodName, Object[] args) {
-            for (MetaMethod<?> method : _memberMethods) {
-                if (methodName.equals(method.methodName) && method.parameterTypes.length == args.length) {
+        // sends the outcome of a CompletionStage returned by the provider.
+        class ReplyCallback implements Callback<Object> {
+            private final long _sequenceNumber;
+
+            ReplyCallback(long sequenceNumber) {
+                _sequenceNumber = sequenceNumber;
+            }
+
+            public void onCallback(Object result) {
+                writeReply(_sequenceNumber, true, result);
+            }
+
+            public void onException(Throwable t) {
+                writeReply(_sequenceNumber, false, t);
+            }
+        }
+
+        private ServerMethod getMethodFor(Object methodIdOrName, Object[] args) throws StreamCorruptedException {
+            if (methodIdOrName instanceof Number) {
+                int methodId = ((Number)methodIdOrName).intValue();
+                if (methodId < 0 || methodId >= _methods.length
+                    || _methods[methodId]._argumentTypes.length != args.length) {
+                    throw new StreamCorruptedException("Unknown method id " + methodId + " with " + args.length
+                                                       + " arguments");
+                }
+                return _methods[methodId];
+            }
+
+            if (!(methodIdOrName instanceof String)) {
+                throw new StreamCorruptedException("Expected a method name or id but got " + methodIdOrName);
+            }
+
+            String methodName = (String)methodIdOrName;
+            for (ServerMethod method : _methods) {
+                if (methodName.equals(method._methodName) && method._argumentTypes.length == args.length) {
                     return method;
                 }
             }
@@ -188,21 +368,20 @@ public class VanillaRmiServer<P> extends VanillaResource implements Factory<Data
     }
 
     class OnDisconnectionRunnable implements Runnable {
-        private final MetaMethod<?> _method;
+        private final ServerMethod _method;
         private final Object[] _args;
 
-        OnDisconnectionRunnable(MetaMethod<?> method, Object[] args) {
+        OnDisconnectionRunnable(ServerMethod method, Object[] args) {
             _method = method;
             _args = args;
         }
 
-        @SuppressWarnings({"unchecked", "rawtypes"})
         public void run() {
             try {
-                ((MetaMethod)_method).invoke(_provider, _args);
+                _method.invoke(_args);
             }
-            catch (InvocationTargetException e) {
-                getLog().warn(getName() + ": Exception thrown on disconnect.", e.getCause());
+            catch (Throwable t) {
+                getLog().warn(getName() + ": Exception thrown on disconnect.", t);
             }
         }
 
@@ -217,7 +396,94 @@ public class VanillaRmiServer<P> extends VanillaResource implements Factory<Data
 
             @SuppressWarnings("unchecked")
             OnDisconnectionRunnable odr = (OnDisconnectionRunnable)obj;
-            return _method.method.equals(odr._method.method) && Arrays.equals(_args, odr._args);
+            return _method._metaMethod.method.equals(odr._method._metaMethod.method)
+                   && Arrays.equals(_args, odr._args);
+        }
+    }
+
+    // A member method with everything its dispatch needs worked out when the server starts,
+    // so a request only converts the arguments which are not already of the right type and
+    // calls the method through a MethodHandle bound to the provider, where the JVM has them.
+    static class ServerMethod {
+        // MethodHandleInvoker is only loaded on JVMs with java.lang.invoke (Java 7 and later).
+        static final boolean METHOD_HANDLES = hasMethodHandles();
+
+        final MetaMethod<Object> _metaMethod;
+        final String _methodName;
+        // the parameter types, with primitives as their wrappers.
+        final Class<?>[] _argumentTypes;
+        final boolean _onDisconnection;
+        final boolean _completionStage;
+        final boolean _ordered;
+        private final MethodInvoker _invoker;
+
+        /**
+         * @param methodHandles whether to call the method through a MethodHandle, when it can
+         *            be looked up, rather than by reflection.
+         */
+        @SuppressWarnings("unchecked")
+        ServerMethod(MetaMethod<?> metaMethod, Object provider, boolean methodHandles) {
+            _metaMethod = (MetaMethod<Object>)metaMethod;
+            _methodName = metaMethod.methodName;
+            _argumentTypes = new Class<?>[metaMethod.parameterTypes.length];
+            for (int i = 0; i < _argumentTypes.length; i++) {
+                _argumentTypes[i] = Classes.asWrapper(metaMethod.parameterTypes[i]);
+            }
+            _onDisconnection = metaMethod.getAnnotation(OnDisconnection.class) != null;
+            _completionStage = RmiInvocationHandler.isCompletionStage(metaMethod.method.getReturnType());
+            _ordered = metaMethod.getAnnotation(Ordered.class) != null;
+            _invoker = newInvoker(_metaMethod, provider, methodHandles);
+        }
+
+        private static boolean hasMethodHandles() {
+            try {
+                Class.forName("java.lang.invoke.MethodHandles");
+                return true;
+            }
+            catch (ClassNotFoundException e) {
+                return false;
+            }
+        }
+
+        private static MethodInvoker newInvoker(final MetaMethod<Object> metaMethod,
+                                                final Object provider,
+                                                boolean methodHandles) {
+            if (methodHandles) {
+                try {
+                    return MethodHandleInvoker.newInvoker(metaMethod.method, provider);
+                }
+                catch (IllegalAccessException e) {
+                    // called by reflection instead.
+                }
+            }
+
+            return new MethodInvoker() {
+                public Object invoke(Object[] args) throws Throwable {
+                    try {
+                        return metaMethod.invoke(provider, args);
+                    }
+                    catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            };
+        }
+
+        void convertArguments(Object[] args) {
+            final Class<?>[] types = _argumentTypes;
+            for (int i = 0; i < args.length; i++) {
+                final Object arg = args[i];
+                if (arg != null && arg.getClass() != types[i]) {
+                    args[i] = Classes.parseAs(arg, types[i]);
+                }
+            }
+        }
+
+        /**
+         * @throws Throwable what the method threw.
+         */
+        Object invoke(Object[] args) throws Throwable {
+            return _invoker.invoke(args);
         }
     }
 
@@ -95,7 +95,10 @@ public class Classes {
         throw new ClassCastException("Unable to convert types from " + oClass + " to " + clazz2);
     }
 
-    private static Class<?> asWrapper(Class<?> clazz) {
+    /**
+     * @return the wrapper class of a primitive type, otherwise the class itself.
+     */
+    public static Class<?> asWrapper(Class<?> clazz) {
         Class<?> ret = WRAPPER_TYPES.get(clazz);
         return ret == null ? clazz : ret;
     }
@@ -111,6 +114,22 @@ public class Classes {
         return methodList;
     }
 
+    /**
+     * @return the method name followed by the names of its first parameterCount parameter
+     *         types, e.g. add(int,int)
+     */
+    public static String methodSignature(String methodName, Class<?>[] parameterTypes, int parameterCount) {
+        StringBuilder sb = new StringBuilder(methodName.length() + 16 * parameterCount);
+        sb.append(methodName).append('(');
+        for (int i = 0; i < parameterCount; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(parameterTypes[i].getName());
+        }
+        return sb.append(')').toString();
+    }
+
     private static boolean isPublicNonStatic(Member method) {
         return (method.getModifiers() & (Modifier.STATIC | Modifier.PUBLIC)) == Modifier.PUBLIC;
     }
@@ -119,6 +138,7 @@ public class Classes {
         public final String methodName;
         public final Class<?>[] parameterTypes;
         public final Method method;
+        public final String signature;
 
         public MetaMethod(MetaMethod<T> method) {
             this(method.methodName, method.parameterTypes, method.method);
@@ -128,6 +148,7 @@ public class Classes {
             this.methodName = methodName;
             this.parameterTypes = parameterTypes;
             this.method = method;
+            this.signature = methodSignature(methodName, parameterTypes, parameterTypes.length);
         }
 
         public Object invoke(T object, Object... args) throws InvocationTargetException {
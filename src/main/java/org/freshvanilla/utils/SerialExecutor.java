@@ -0,0 +1,73 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on a shared Executor.
+ * No thread is held while there is nothing to run.
+ */
+public class SerialExecutor implements Executor {
+    private final Executor _executor;
+    private final Queue<Runnable> _tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean _scheduled = new AtomicBoolean();
+    private final Runnable _drain = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    public SerialExecutor(Executor executor) {
+        _executor = executor;
+    }
+
+    public void execute(Runnable task) {
+        _tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (!_tasks.isEmpty() && _scheduled.compareAndSet(false, true)) {
+            try {
+                _executor.execute(_drain);
+            }
+            catch (RejectedExecutionException e) {
+                _scheduled.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = _tasks.poll()) != null) {
+                task.run();
+            }
+        }
+        finally {
+            _scheduled.set(false);
+            // a task may have been added after the queue was found empty.
+            schedule();
+        }
+    }
+}
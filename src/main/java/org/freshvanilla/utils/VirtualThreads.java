@@ -0,0 +1,90 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import org.freshvanilla.lang.misc.Unsafe;
+
+/**
+ * Creates virtual threads on JVMs which have them (Java 21 and later). They are looked up
+ * reflectively so the library still runs on older JVMs, where isSupported() is false.
+ * Virtual threads all share the JVM's carrier pool.
+ */
+public final class VirtualThreads {
+
+    /**
+     * Set this system property to true to read replies to async calls on virtual threads.
+     */
+    public static final String READERS_PROPERTY = "org.freshvanilla.virtualThreads";
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+        }
+        catch (Exception e) {
+            ofVirtual = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() {
+        // not used
+    }
+
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    public static boolean isEnabledForReaders() {
+        return isSupported() && Boolean.getBoolean(READERS_PROPERTY);
+    }
+
+    /**
+     * @return a factory of virtual threads named name:1, name:2 etc.
+     * @throws UnsupportedOperationException if the JVM doesn't support virtual threads.
+     */
+    public static ThreadFactory newThreadFactory(String name) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        }
+
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = NAME.invoke(builder, name + ':', 1L);
+            return (ThreadFactory)FACTORY.invoke(builder);
+        }
+        catch (Exception e) {
+            throw Unsafe.rethrow(e);
+        }
+    }
+}
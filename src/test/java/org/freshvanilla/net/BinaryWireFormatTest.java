@@ -0,0 +1,166 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+import org.freshvanilla.test.AbstractTestCase;
+
+public class BinaryWireFormatTest extends AbstractTestCase {
+
+    private static final Object[] PRIMITIVE_ARRAYS = {new boolean[]{true, false, true}, new short[]{1, -2, 3},
+        new char[]{'a', '\u20ac'}, new int[]{0, -1, Integer.MAX_VALUE}, new long[]{1L << 40, -3},
+        new float[]{1.5f, Float.NaN}, new double[]{Math.PI, -0.0}, new int[0]};
+
+    enum Op {
+        PLUS {
+            int apply(int a, int b) {
+                return a + b;
+            }
+        };
+
+        abstract int apply(int a, int b);
+    }
+
+    private BinaryWireFormat newWireFormat(String... features) {
+        BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses());
+        wf.enableFeatures(new HashSet<String>(Arrays.asList(features)));
+        return wf;
+    }
+
+    public void test_primitiveArrays() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+
+        for (String[] features : new String[][]{{}, {BinaryWireFormat.PRIMITIVE_ARRAYS}}) {
+            BinaryWireFormat wf = newWireFormat(features);
+            for (Object array : PRIMITIVE_ARRAYS) {
+                buffer.clear();
+                wf.writeObject(buffer, array);
+                int size = buffer.position();
+                buffer.flip();
+
+                Object array2 = wf.readObject(buffer);
+                assertEquals(array.getClass(), array2.getClass());
+                assertTrue(Arrays.deepEquals(new Object[]{array}, new Object[]{array2}));
+                assertFalse(buffer.hasRemaining());
+
+                if (features.length > 0) {
+                    // no Java serialization header
+                    assertTrue(size + " bytes for " + array.getClass(), size < 30);
+                }
+            }
+        }
+    }
+
+    public void test_featuresNotEnabledByDefault() throws Exception {
+        BinaryWireFormat wf = newWireFormat();
+        assertTrue(wf.supportedFeatures().contains(BinaryWireFormat.PRIMITIVE_ARRAYS));
+
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        wf.writeObject(buffer, new int[]{1, 2, 3});
+        assertEquals((byte)~SpecialTag.SERIALIZABLE.ordinal(), buffer.get(0));
+
+        wf.enableFeatures(Collections.singleton(BinaryWireFormat.PRIMITIVE_ARRAYS));
+        buffer.clear();
+        wf.writeObject(buffer, new int[]{1, 2, 3});
+        assertEquals((byte)~SpecialTag.INTS.ordinal(), buffer.get(0));
+    }
+
+    public void test_varints() throws Exception {
+        BinaryWireFormat wf = newWireFormat(BinaryWireFormat.VARINTS);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        Object[] values = {0, 127, 128, -1, Integer.MIN_VALUE, Integer.MAX_VALUE, 0L, -64L, 1L << 40, Long.MIN_VALUE,
+            Long.MAX_VALUE};
+        for (Object value : values) {
+            buffer.clear();
+            wf.writeObject(buffer, value);
+            buffer.flip();
+            assertEquals(value, wf.readObject(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+
+        long[] nums = {0, 128, -129, 1L << 20, -(1L << 40), Long.MIN_VALUE, Long.MAX_VALUE};
+        for (long num : nums) {
+            buffer.clear();
+            wf.writeNum(buffer, num);
+            buffer.flip();
+            assertEquals(num, wf.readNum(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+
+        // a tag and 1 byte instead of a tag and 8.
+        buffer.clear();
+        wf.writeObject(buffer, 6L);
+        assertEquals(2, buffer.position());
+        buffer.clear();
+        wf.writeNum(buffer, 1L << 40);
+        assertEquals(7, buffer.position());
+    }
+
+    public void test_compactStrings() throws Exception {
+        BinaryWireFormat wf = newWireFormat(BinaryWireFormat.COMPACT_STRINGS);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longText.append("caf\u00e9 \u65e5\u672c ");
+        }
+        String[] texts = {"", "hello", "na\u00efve \u00ff", "\u00e9t\u00e9", "\u0394\u03b5\u03bb\u03c4\u03b1",
+            "\u4e2d\u6587", "\ud83d\ude00 smile", "lone \ud800 \udc00 surrogates\ud800", longText.toString()};
+        for (String text : texts) {
+            buffer.clear();
+            wf.writeObject(buffer, text);
+            buffer.flip();
+            assertEquals(text, wf.readObject(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+
+        // a tag, a length and a byte per char.
+        buffer.clear();
+        wf.writeObject(buffer, "\u00e9t\u00e9");
+        assertEquals(5, buffer.position());
+        // and 3 bytes per CJK char, without a marker byte for each.
+        buffer.clear();
+        wf.writeObject(buffer, "\u4e2d\u6587");
+        assertEquals(8, buffer.position());
+
+        BinaryWireFormat wf2 = new BinaryWireFormat(getMetaClasses());
+        assertTrue(wf2.supportedFeatures().contains(BinaryWireFormat.COMPACT_STRINGS));
+        wf2.setCompactStrings(false);
+        assertFalse(wf2.supportedFeatures().contains(BinaryWireFormat.COMPACT_STRINGS));
+    }
+
+    public void test_writeKinds() {
+        assertEquals(BinaryWireFormat.WriteKind.STRING, BinaryWireFormat.WriteKind.of(String.class));
+        assertEquals(BinaryWireFormat.WriteKind.LIST, BinaryWireFormat.WriteKind.of(ArrayList.class));
+        assertEquals(BinaryWireFormat.WriteKind.SET, BinaryWireFormat.WriteKind.of(TreeSet.class));
+        // an enum constant with a body is a subclass of the enum.
+        assertEquals(BinaryWireFormat.WriteKind.ENUM, BinaryWireFormat.WriteKind.of(Op.PLUS.getClass()));
+        assertEquals(BinaryWireFormat.WriteKind.PRIMITIVE_ARRAY, BinaryWireFormat.WriteKind.of(int[].class));
+        assertEquals(BinaryWireFormat.WriteKind.BYTES, BinaryWireFormat.WriteKind.of(byte[].class));
+        // written with Java serialization.
+        assertEquals(BinaryWireFormat.WriteKind.OTHER, BinaryWireFormat.WriteKind.of(BigDecimal.class));
+        assertEquals(BinaryWireFormat.WriteKind.OTHER, BinaryWireFormat.WriteKind.of(String[].class));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.freshvanilla.rmi.Proxies;
+import org.freshvanilla.rmi.VanillaRmiServer;
+import org.freshvanilla.test.AbstractTestCase;
+
+public class CachedDataSocketFactoryTest extends AbstractTestCase {
+
+    VanillaRmiServer<Object> _server;
+    CachedDataSocketFactory _factory;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        _server = Proxies.newServer(getName(), 0, new Object());
+        _factory = new CachedDataSocketFactory(getName(), "localhost:" + _server.getPort(), 1000L,
+            getMetaClasses());
+        _factory.setMaximumConnections(1);
+    }
+
+    protected void tearDown() throws Exception {
+        _factory.close();
+        closeServer(_server);
+        super.tearDown();
+    }
+
+    public void test_waitersServedInOrder() throws Exception {
+        DataSocket ds = _factory.acquire(getName());
+        BlockingQueue<String> served = new ArrayBlockingQueue<String>(2);
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        startWaiter("first", served, failure);
+        while (_factory.getWaitCount() < 1) {
+            Thread.sleep(1);
+        }
+        startWaiter("second", served, failure);
+        while (_factory.getWaitCount() < 2) {
+            Thread.sleep(1);
+        }
+
+        _factory.recycle(ds);
+        String first = served.poll(5, TimeUnit.SECONDS);
+        String second = served.poll(5, TimeUnit.SECONDS);
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals("first", first);
+        assertEquals("second", second);
+        assertEquals(1, _factory.getCreationCount());
+        assertEquals(0, _factory.getTimeoutCount());
+    }
+
+    public void test_acquireTimeout() throws Exception {
+        _factory.setAcquireTimeoutMillis(50);
+        DataSocket ds = _factory.acquire(getName());
+        long start = System.nanoTime();
+        try {
+            _factory.acquire(getName());
+            fail("expected a TimeoutException");
+        }
+        catch (TimeoutException expected) {
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        assertEquals(1, _factory.getTimeoutCount());
+
+        // a closed connection frees its slot for a new one.
+        ds.close();
+        _factory.recycle(ds);
+        DataSocket ds2 = _factory.acquire(getName());
+        assertNotSame(ds, ds2);
+        assertEquals(2, _factory.getCreationCount());
+        _factory.recycle(ds2);
+    }
+
+    private void startWaiter(final String name,
+                             final BlockingQueue<String> served,
+                             final AtomicReference<Throwable> failure) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    DataSocket ds = _factory.acquire(CachedDataSocketFactoryTest.this.getName());
+                    served.add(name);
+                    _factory.recycle(ds);
+                }
+                catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
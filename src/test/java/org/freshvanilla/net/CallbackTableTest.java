@@ -0,0 +1,85 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.util.List;
+
+import org.freshvanilla.test.AbstractTestCase;
+import org.freshvanilla.utils.Callback;
+
+public class CallbackTableTest extends AbstractTestCase {
+
+    static class NumberedCallback implements Callback<Object> {
+        final long _number;
+
+        NumberedCallback(long number) {
+            _number = number;
+        }
+
+        public void onCallback(Object o) {
+            // not called
+        }
+
+        public void onException(Throwable t) {
+            // not called
+        }
+    }
+
+    public void test_putAndRemove() {
+        CallbackTable table = new CallbackTable();
+        // sequence numbers are consecutive microsecond timestamps.
+        long start = System.currentTimeMillis() * 1000L;
+        int count = 10000;
+        for (int i = 0; i < count; i++) {
+            table.put(start + i, new NumberedCallback(start + i), CallbackTable.NO_DEADLINE);
+        }
+        assertEquals(count, table.size());
+
+        // every other one, so entries are moved back into the slots emptied.
+        for (int i = 0; i < count; i += 2) {
+            assertEquals(start + i, ((NumberedCallback)table.remove(start + i))._number);
+        }
+        assertNull(table.remove(start));
+        assertEquals(count / 2, table.size());
+
+        for (int i = 1; i < count; i += 2) {
+            assertEquals(start + i, ((NumberedCallback)table.remove(start + i))._number);
+        }
+        assertEquals(0, table.size());
+        assertNull(table.remove(start + 1));
+    }
+
+    public void test_expire() {
+        CallbackTable table = new CallbackTable();
+        for (int i = 0; i < 100; i++) {
+            table.put(i, new NumberedCallback(i), i % 2 == 0 ? 1000 + i : CallbackTable.NO_DEADLINE);
+        }
+
+        assertNull(table.expire(999));
+        List<Callback<?>> expired = table.expire(1049);
+        assertEquals(25, expired.size());
+        for (Callback<?> callback : expired) {
+            long number = ((NumberedCallback)callback)._number;
+            assertTrue(number % 2 == 0 && number <= 49);
+        }
+
+        assertEquals(50, table.expire(Long.MAX_VALUE - 1).size() + 25);
+        assertEquals(50, table.size());
+        assertNotNull(table.remove(99));
+        assertEquals(49, table.removeAll().size());
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.freshvanilla.rmi.PrimitivePojo;
+import org.freshvanilla.test.AbstractTestCase;
+
+public class ChunkedFramesTest extends AbstractTestCase {
+
+    private static Object largeMessage() {
+        List<Object> message = new ArrayList<Object>();
+        byte[] bytes = new byte[1536 * 1024];
+        Arrays.fill(bytes, (byte)7);
+        message.add(bytes);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100 * 1000; i++) {
+            text.append(i % 10 == 0 ? '\u20ac' : (char)('a' + i % 26));
+        }
+        message.add(text.toString());
+
+        double[] doubles = new double[10 * 1000];
+        for (int i = 0; i < doubles.length; i++) {
+            doubles[i] = i / 3.0;
+        }
+        message.add(doubles);
+        message.add(new boolean[]{true, false, true});
+
+        for (int i = 0; i < 1000; i++) {
+            message.add(i * 1234567L);
+        }
+
+        // fields written by PojoCodec across the ends of chunks.
+        for (int i = 0; i < 500; i++) {
+            message.add(new PrimitivePojo(true, (byte)i, (short)i, 'c', i, i / 3.0f, i * 1234567L, i / 7.0));
+        }
+        return message;
+    }
+
+    private static void assertMessage(Object expected, Object actual) {
+        assertTrue(Arrays.deepEquals(((List<?>)expected).toArray(), ((List<?>)actual).toArray()));
+    }
+
+    public void test_writeInChunks() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.allocate(100);
+        final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        final int[] count = {0};
+
+        BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses());
+        wf.enableFeatures(wf.supportedFeatures());
+        wf.setChunkedOutput(new ChunkedOutput() {
+            public void flushChunk() {
+                chunks.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+                count[0]++;
+            }
+        });
+
+        Object message = largeMessage();
+        wf.writeObject(buffer, message);
+        chunks.write(buffer.array(), 0, buffer.position());
+        assertTrue(count[0] > 1000);
+
+        Object message2 = wf.readObject(ByteBuffer.wrap(chunks.toByteArray()));
+        assertMessage(message, message2);
+    }
+
+    public void test_sockets() throws Exception {
+        exchange(new BinaryWireFormat(getMetaClasses()), true);
+    }
+
+    public void test_peerWithoutChunks() throws Exception {
+        // as sent by versions before chunks.
+        BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses()) {
+            public Set<String> supportedFeatures() {
+                return Collections.emptySet();
+            }
+        };
+        exchange(wf, false);
+    }
+
+    public void test_unpaddedFrames() throws Exception {
+        final ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress(0));
+        final InetSocketAddress isa = new InetSocketAddress("localhost", ssc.socket().getLocalPort());
+        final BinaryWireFormat peerWireFormat = new BinaryWireFormat(getMetaClasses());
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        DataSocket ds = null;
+
+        try {
+            // a peer which reads and writes frames by hand.
+            Future<List<Integer>> peer = service.submit(new Callable<List<Integer>>() {
+                public List<Integer> call() throws Exception {
+                    SocketChannel sc = ssc.accept();
+                    try {
+                        Map<String, Object> header = new LinkedHashMap<String, Object>();
+                        header.put(AbstractDataSocket.FEATURES_HEADER,
+                            Collections.singleton(AbstractDataSocket.UNPADDED_FRAMES));
+                        ByteBuffer wb = ByteBuffer.allocate(AbstractDataSocket.MIN_PACKET_SIZE);
+                        wb.position(4);
+                        peerWireFormat.writeObject(wb, header);
+                        wb.putInt(0, wb.position());
+                        wb.clear();
+                        writeFully(sc, wb);
+
+                        // the header is still padded.
+                        readFully(sc, ByteBuffer.allocate(AbstractDataSocket.MIN_PACKET_SIZE));
+
+                        List<Integer> lengths = new ArrayList<Integer>();
+                        for (int i = 0; i < 2; i++) {
+                            ByteBuffer len = ByteBuffer.allocate(4);
+                            readFully(sc, len);
+                            lengths.add(len.getInt(0));
+                            readFully(sc, ByteBuffer.allocate(len.getInt(0) - 4));
+                        }
+
+                        // two frames in one go.
+                        wb.clear();
+                        for (String text : new String[]{"one", "two"}) {
+                            int start = wb.position();
+                            wb.position(start + 4);
+                            peerWireFormat.writeObject(wb, text);
+                            wb.putInt(start, wb.position() - start);
+                        }
+                        wb.flip();
+                        writeFully(sc, wb);
+                        return lengths;
+                    }
+                    finally {
+                        sc.close();
+                    }
+                }
+            });
+
+            BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses());
+            ds = new VanillaDataSocket("client", isa, SocketChannel.open(isa), wf,
+                new LinkedHashMap<String, Object>(), DataSocketFactory.DEFAULT_MAXIMUM_MESSAGE_SIZE);
+
+            for (int i = 0; i < 2; i++) {
+                wf.writeObject(ds.writeBuffer(), "hi");
+                ds.flush();
+            }
+
+            assertEquals("one", wf.readObject(ds.read()));
+            assertEquals("two", wf.readObject(ds.read()));
+            // the length, the STRING tag, the string length and two bytes.
+            assertEquals(Arrays.asList(8, 8), peer.get());
+        }
+        finally {
+            if (ds != null) {
+                ds.close();
+            }
+            service.shutdownNow();
+            ssc.close();
+        }
+    }
+
+    public void test_largeHeader() throws Exception {
+        final ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress(0));
+        final InetSocketAddress isa = new InetSocketAddress("localhost", ssc.socket().getLocalPort());
+        final Map<String, Object> header = new LinkedHashMap<String, Object>();
+        // larger than a chunk, which can't be sent until the headers have been read.
+        char[] text = new char[100 * 1000];
+        Arrays.fill(text, 'h');
+        header.put("large", new String(text));
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        DataSocket ds = null;
+
+        try {
+            Future<Object> server = service.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    DataSocket ds = new VanillaDataSocket("server", null, ssc.accept(),
+                        new BinaryWireFormat(getMetaClasses()), header,
+                        DataSocketFactory.DEFAULT_MAXIMUM_MESSAGE_SIZE);
+                    try {
+                        return ds.getOtherHeader().get("large");
+                    }
+                    finally {
+                        ds.close();
+                    }
+                }
+            });
+
+            ds = new VanillaDataSocket("client", isa, SocketChannel.open(isa), new BinaryWireFormat(getMetaClasses()),
+                header, DataSocketFactory.DEFAULT_MAXIMUM_MESSAGE_SIZE);
+            assertEquals(header.get("large"), ds.getOtherHeader().get("large"));
+            assertEquals(header.get("large"), server.get());
+        }
+        finally {
+            if (ds != null) {
+                ds.close();
+            }
+            service.shutdownNow();
+            ssc.close();
+        }
+    }
+
+    public void test_maximumAssembledSize() throws Exception {
+        final ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress(0));
+        final InetSocketAddress isa = new InetSocketAddress("localhost", ssc.socket().getLocalPort());
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        DataSocket ds = null;
+
+        try {
+            Future<Boolean> server = service.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    VanillaDataSocket ds = new VanillaDataSocket("server", null, ssc.accept(),
+                        new BinaryWireFormat(getMetaClasses()), new LinkedHashMap<String, Object>(),
+                        DataSocketFactory.DEFAULT_MAXIMUM_MESSAGE_SIZE);
+                    ds.setMaximumAssembledSize(256 * 1024);
+                    try {
+                        ds.read();
+                        return false;
+                    }
+                    catch (StreamCorruptedException expected) {
+                        return ds.isClosed();
+                    }
+                    finally {
+                        ds.close();
+                    }
+                }
+            });
+
+            BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses());
+            ds = new VanillaDataSocket("client", isa, SocketChannel.open(isa), wf,
+                new LinkedHashMap<String, Object>(), DataSocketFactory.DEFAULT_MAXIMUM_MESSAGE_SIZE);
+            try {
+                wf.writeObject(ds.writeBuffer(), largeMessage());
+                ds.flush();
+            }
+            catch (IOException e) {
+                // the server may have dropped the connection first.
+            }
+
+            // failed and dropped rather than grown without end.
+            assertTrue(server.get());
+        }
+        finally {
+            if (ds != null) {
+                ds.close();
+            }
+            service.shutdownNow();
+            ssc.close();
+        }
+    }
+
+    private static void readFully(SocketChannel sc, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            if (sc.read(bb) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void writeFully(SocketChannel sc, ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            sc.write(bb);
+        }
+    }
+
+    private void exchange(final BinaryWireFormat serverWireFormat, boolean chunked) throws Exception {
+        final int maximumMessageSize = 4 * 1024 * 1024;
+        final ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress(0));
+        final InetSocketAddress isa = new InetSocketAddress("localhost", ssc.socket().getLocalPort());
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        DataSocket ds = null;
+
+        try {
+            // echoes one message.
+            Future<?> echo = service.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    DataSocket ds = new VanillaDataSocket("server", null, ssc.accept(), serverWireFormat,
+                        new LinkedHashMap<String, Object>(), maximumMessageSize);
+                    try {
+                        Object message = serverWireFormat.readObject(ds.read());
+                        serverWireFormat.writeObject(ds.writeBuffer(), message);
+                        ds.flush();
+                        return message;
+                    }
+                    finally {
+                        ds.close();
+                    }
+                }
+            });
+
+            SocketChannel sc = SocketChannel.open(isa);
+            BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses());
+            ds = new VanillaDataSocket("client", isa, sc, wf, new LinkedHashMap<String, Object>(),
+                maximumMessageSize);
+            Object features = ds.getOtherHeader().get(AbstractDataSocket.FEATURES_HEADER);
+            assertEquals(chunked, ((Collection<?>)features).contains(BinaryWireFormat.CHUNKED));
+
+            Object message = largeMessage();
+            wf.writeObject(ds.writeBuffer(), message);
+            ds.flush();
+
+            assertMessage(message, wf.readObject(ds.read()));
+            assertMessage(message, echo.get());
+        }
+        finally {
+            if (ds != null) {
+                ds.close();
+            }
+            service.shutdownNow();
+            ssc.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.freshvanilla.test.AbstractTestCase;
+import org.freshvanilla.utils.Callback;
+
+public class DataSocketReaderTest extends AbstractTestCase {
+
+    public void test_slowCallbackDoesntStallReader() throws Exception {
+        final ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress(0));
+        final InetSocketAddress isa = new InetSocketAddress("localhost", ssc.socket().getLocalPort());
+        final ExecutorService readerExecutor = VanillaDataSocket.newReaderExecutor(getName());
+        ExecutorService service = Executors.newSingleThreadExecutor();
+        final BlockingQueue<Object> read = new LinkedBlockingQueue<Object>();
+        final BlockingQueue<Object> called = new LinkedBlockingQueue<Object>();
+        final CountDownLatch release = new CountDownLatch(1);
+        DataSocket ds = null;
+
+        try {
+            // writes three messages and waits for the client to hang up.
+            Future<?> server = service.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    WireFormat wf = new BinaryWireFormat(getMetaClasses());
+                    DataSocket ds = new VanillaDataSocket("server", null, ssc.accept(), wf,
+                        new LinkedHashMap<String, Object>(), DataSocketFactory.DEFAULT_MAXIMUM_MESSAGE_SIZE);
+                    try {
+                        for (int i = 1; i <= 3; i++) {
+                            wf.writeNum(ds.writeBuffer(), i);
+                            ds.flush();
+                        }
+                        ds.read();
+                        return null;
+                    }
+                    catch (Exception expected) {
+                        return null;
+                    }
+                    finally {
+                        ds.close();
+                    }
+                }
+            });
+
+            final WireFormat wf = new BinaryWireFormat(getMetaClasses());
+            ds = new VanillaDataSocket("client", isa, SocketChannel.open(isa), wf,
+                new LinkedHashMap<String, Object>(), DataSocketFactory.DEFAULT_MAXIMUM_MESSAGE_SIZE,
+                DirectBufferPool.getDefault(), readerExecutor);
+            assertFalse(ds.hasReader());
+
+            final DataSocket client = ds;
+            Callback<DataSocket> reader = new Callback<DataSocket>() {
+                public void onCallback(DataSocket dataSocket) throws Exception {
+                    final long n = wf.readNum(client.read());
+                    read.add(n);
+                    client.callbackExecutor().execute(new Runnable() {
+                        public void run() {
+                            try {
+                                if (n == 1) {
+                                    release.await(5, TimeUnit.SECONDS);
+                                }
+                                called.add(n);
+                            }
+                            catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+                }
+
+                public void onException(Throwable t) {
+                    // the socket is closed at the end of the test.
+                }
+            };
+            ds.setReader(reader);
+            assertTrue(ds.hasReader());
+
+            // every message is read while the first callback is still running.
+            for (long i = 1; i <= 3; i++) {
+                assertEquals(i, read.poll(5, TimeUnit.SECONDS));
+            }
+            assertTrue(called.isEmpty());
+
+            // and the callbacks then run in order.
+            release.countDown();
+            for (long i = 1; i <= 3; i++) {
+                assertEquals(i, called.poll(5, TimeUnit.SECONDS));
+            }
+
+            ds.close();
+            server.get(5, TimeUnit.SECONDS);
+        }
+        finally {
+            if (ds != null) {
+                ds.close();
+            }
+            service.shutdownNow();
+            readerExecutor.shutdownNow();
+            ssc.close();
+        }
+    }
+}
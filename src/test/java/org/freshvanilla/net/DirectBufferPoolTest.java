@@ -0,0 +1,168 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.freshvanilla.rmi.Proxies;
+import org.freshvanilla.rmi.VanillaRmiServer;
+import org.freshvanilla.test.AbstractTestCase;
+
+public class DirectBufferPoolTest extends AbstractTestCase {
+
+    public void test_sizeClasses() {
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.DEFAULT_MAXIMUM_FREE_BYTES);
+
+        ByteBuffer small = pool.acquire(1000);
+        assertTrue(small.isDirect());
+        assertEquals(4096, small.capacity());
+        assertEquals(4096, pool.getBytesInUse());
+        // the rest of the slab.
+        assertEquals(DirectBufferPool.SLAB_SIZE - 4096, pool.getBytesFree());
+
+        ByteBuffer large = pool.acquire(DirectBufferPool.SLAB_SIZE + 1);
+        assertEquals(2 * DirectBufferPool.SLAB_SIZE, large.capacity());
+
+        pool.release(small);
+        pool.release(large);
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(3 * DirectBufferPool.SLAB_SIZE, pool.getBytesFree());
+
+        // reused rather than allocated.
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < DirectBufferPool.SLAB_SIZE / 4096; i++) {
+            buffers.add(pool.acquire(4096));
+        }
+        assertSame(large, pool.acquire(2 * DirectBufferPool.SLAB_SIZE));
+        assertEquals(0, pool.getBytesFree());
+    }
+
+    public void test_reuse() {
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.DEFAULT_MAXIMUM_FREE_BYTES);
+        ByteBuffer buffer = pool.acquire(DirectBufferPool.SLAB_SIZE);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(DirectBufferPool.SLAB_SIZE));
+    }
+
+    public void test_maximumFreeBytes() {
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.SLAB_SIZE);
+        ByteBuffer buffer1 = pool.acquire(DirectBufferPool.SLAB_SIZE);
+        ByteBuffer buffer2 = pool.acquire(DirectBufferPool.SLAB_SIZE);
+        pool.release(buffer1);
+        pool.release(buffer2);
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(DirectBufferPool.SLAB_SIZE, pool.getBytesFree());
+    }
+
+    public void test_socketsReleaseBuffers() throws Exception {
+        VanillaRmiServer<Object> server = Proxies.newServer(getName(), 0, new Object());
+        DataSocketFactory factory = new DataSocketFactory(getName(), "localhost:" + server.getPort(), 1000,
+            getMetaClasses());
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.DEFAULT_MAXIMUM_FREE_BYTES);
+        factory.setBufferPool(pool);
+
+        try {
+            DataSocket ds1 = factory.acquire(getName());
+            DataSocket ds2 = factory.acquire(getName());
+            // a read and a write buffer each, as chunks are supported.
+            assertEquals(4 * AbstractDataSocket.CHUNK_SIZE, pool.getBytesInUse());
+
+            ds1.close();
+            ds1.close();
+            ds2.close();
+            assertEquals(0, pool.getBytesInUse());
+        }
+        finally {
+            factory.close();
+            closeServer(server);
+        }
+    }
+
+    public void test_closeWhileWriting() throws Exception {
+        VanillaRmiServer<Object> server = Proxies.newServer(getName(), 0, new Object());
+        DataSocketFactory factory = new DataSocketFactory(getName(), "localhost:" + server.getPort(), 1000,
+            getMetaClasses());
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.DEFAULT_MAXIMUM_FREE_BYTES);
+        factory.setBufferPool(pool);
+
+        try {
+            final DataSocket ds = factory.acquire(getName());
+            ds.lockWrite();
+            Thread closer = new Thread(new Runnable() {
+                public void run() {
+                    ds.close();
+                }
+            });
+            closer.start();
+            while (closer.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+
+            // the write buffer is kept until the writer lets go of it.
+            assertEquals(AbstractDataSocket.CHUNK_SIZE, pool.getBytesInUse());
+            ds.writeBuffer();
+            ds.unlockWrite();
+            closer.join();
+            assertEquals(0, pool.getBytesInUse());
+        }
+        finally {
+            factory.close();
+            closeServer(server);
+        }
+    }
+
+    public void test_closeWhileReading() throws Exception {
+        VanillaRmiServer<Object> server = Proxies.newServer(getName(), 0, new Object());
+        DataSocketFactory factory = new DataSocketFactory(getName(), "localhost:" + server.getPort(), 1000,
+            getMetaClasses());
+        DirectBufferPool pool = new DirectBufferPool(DirectBufferPool.DEFAULT_MAXIMUM_FREE_BYTES);
+        factory.setBufferPool(pool);
+
+        try {
+            final AbstractDataSocket ds = (AbstractDataSocket)factory.acquire(getName());
+            ds.startReading();
+            Thread closer = new Thread(new Runnable() {
+                public void run() {
+                    ds.close();
+                }
+            });
+            closer.start();
+            closer.join();
+
+            // the read buffer is kept until the reader is done with it.
+            assertEquals(AbstractDataSocket.CHUNK_SIZE, pool.getBytesInUse());
+            ds.doneReading();
+            assertEquals(0, pool.getBytesInUse());
+
+            try {
+                ds.startReading();
+                fail();
+            }
+            catch (ClosedChannelException expected) {
+                // expected
+            }
+            assertEquals(0, pool.getBytesInUse());
+        }
+        finally {
+            factory.close();
+            closeServer(server);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.freshvanilla.rmi.OnDisconnection;
+import org.freshvanilla.rmi.Proxies;
+import org.freshvanilla.rmi.VanillaRmiServer;
+import org.freshvanilla.test.AbstractTestCase;
+import org.freshvanilla.utils.Callback;
+
+public class SelectorServerTest extends AbstractTestCase {
+
+    interface EchoService {
+        public Object echo(Object o);
+
+        public void echo(Object o, Callback<Object> callback);
+
+        public void bye();
+    }
+
+    static class EchoServiceImpl {
+        final AtomicInteger byes = new AtomicInteger();
+
+        public Object echo(Object o) {
+            return o;
+        }
+
+        public int length(byte[] bytes) {
+            return bytes.length;
+        }
+
+        @OnDisconnection
+        public void bye() {
+            byes.incrementAndGet();
+        }
+    }
+
+    public void test_manyClients() throws IOException, InterruptedException {
+        manyClients(DataServerMode.SELECTOR);
+    }
+
+    // uses a thread per connection on JVMs without virtual threads.
+    public void test_manyClientsOnVirtualThreads() throws IOException, InterruptedException {
+        manyClients(DataServerMode.VIRTUAL_THREAD);
+    }
+
+    private void manyClients(DataServerMode mode) throws IOException, InterruptedException {
+        final EchoServiceImpl impl = new EchoServiceImpl();
+        final VanillaRmiServer<EchoServiceImpl> server = Proxies.newServer(getName(), 0, impl, mode);
+        final int clients = 32;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch finished = new CountDownLatch(clients);
+
+        try {
+            for (int c = 0; c < clients; c++) {
+                final int id = c;
+                new Thread(new Runnable() {
+                    public void run() {
+                        EchoService client = null;
+                        try {
+                            client = Proxies.newClient(getName() + '-' + id, "localhost:" + server.getPort(),
+                                EchoService.class);
+                            client.bye();
+
+                            for (int i = 0; i < 100; i++) {
+                                assertEquals(id * 1000 + i, client.echo(id * 1000 + i));
+                            }
+
+                            final CountDownLatch replies = new CountDownLatch(100);
+                            for (int i = 0; i < 100; i++) {
+                                final int expected = i;
+                                client.echo(i, new Callback<Object>() {
+                                    public void onCallback(Object o) {
+                                        if (!Integer.valueOf(expected).equals(o)) {
+                                            failure.compareAndSet(null, new AssertionError(expected + " != " + o));
+                                        }
+                                        replies.countDown();
+                                    }
+
+                                    public void onException(Throwable t) {
+                                        failure.compareAndSet(null, t);
+                                        replies.countDown();
+                                    }
+                                });
+                            }
+                            assertTrue(replies.await(10, TimeUnit.SECONDS));
+                        }
+                        catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                        finally {
+                            closeClient(client);
+                            finished.countDown();
+                        }
+                    }
+                }).start();
+            }
+
+            assertTrue(finished.await(30, TimeUnit.SECONDS));
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+
+            for (int i = 0; i < 20 && impl.byes.get() < clients; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(clients, impl.byes.get());
+        }
+        finally {
+            closeServer(server);
+        }
+    }
+
+    public void test_largeMessages() throws IOException {
+        VanillaRmiServer<EchoServiceImpl> server = Proxies.newServer(getName(), 0, new EchoServiceImpl(),
+            DataServerMode.SELECTOR);
+        EchoService client = null;
+
+        try {
+            client = Proxies.newClient(getName(), "localhost:" + server.getPort(), EchoService.class);
+
+            // larger than the socket buffers so replies are written in several goes, and
+            // larger than the maximum message size so they are sent in chunks.
+            for (int size : new int[]{0, 100, 256, 4096, 600 * 1000, 3 * 1024 * 1024}) {
+                byte[] bytes = new byte[size];
+                Arrays.fill(bytes, (byte)size);
+                assertTrue(Arrays.equals(bytes, (byte[])client.echo(bytes)));
+            }
+
+            double[] curve = new double[50 * 1000];
+            for (int i = 0; i < curve.length; i++) {
+                curve[i] = i / 7.0;
+            }
+            assertTrue(Arrays.equals(curve, (double[])client.echo(curve)));
+        }
+        finally {
+            closeClient(client);
+            closeServer(server);
+        }
+    }
+
+    public void test_readBufferShrinks() throws Exception {
+        VanillaRmiServer<EchoServiceImpl> server = Proxies.newServer(getName(), 0, new EchoServiceImpl(),
+            DataServerMode.SELECTOR);
+        // as sent by versions before chunks, so a large request arrives as one frame.
+        BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses()) {
+            public Set<String> supportedFeatures() {
+                return Collections.emptySet();
+            }
+        };
+        InetSocketAddress isa = new InetSocketAddress("localhost", server.getPort());
+        VanillaDataSocket ds = new VanillaDataSocket(getName(), isa, SocketChannel.open(isa), wf,
+            new LinkedHashMap<String, Object>(), DataSocketFactory.DEFAULT_MAXIMUM_MESSAGE_SIZE);
+        DirectBufferPool pool = DirectBufferPool.getDefault();
+
+        try {
+            assertEquals(0, length(ds, wf, new byte[0]));
+            long bytesInUse = pool.getBytesInUse();
+            assertEquals(200 * 1000, length(ds, wf, new byte[200 * 1000]));
+
+            // the server goes back to a chunk sized read buffer after handling the request.
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getBytesInUse() > bytesInUse && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(bytesInUse, pool.getBytesInUse());
+            assertEquals(3, length(ds, wf, new byte[3]));
+        }
+        finally {
+            ds.close();
+            closeServer(server);
+        }
+    }
+
+    private static int length(DataSocket ds, WireFormat wf, byte[] bytes) throws Exception {
+        ByteBuffer wb = ds.writeBuffer();
+        wf.writeNum(wb, 0);
+        wf.writeTag(wb, "length");
+        wf.writeArray(wb, 1, new Object[]{bytes});
+        wf.flush(ds, wb);
+
+        ByteBuffer rb = ds.read();
+        assertEquals(0, wf.readNum(rb));
+        assertTrue(wf.readBoolean(rb));
+        return (Integer)wf.readObject(rb);
+    }
+}
@@ -17,11 +17,15 @@
 package org.freshvanilla.net;
 
 import java.io.NotSerializableException;
+import java.lang.reflect.Proxy;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import org.freshvanilla.rmi.Proxies;
+import org.freshvanilla.rmi.RmiInvocationHandler;
 import org.freshvanilla.rmi.VanillaRmiServer;
 import org.freshvanilla.test.AbstractTestCase;
 import org.junit.After;
@@ -36,10 +40,10 @@ public class SerializationFailureTest extends AbstractTestCase {
     @SuppressWarnings("unchecked")
     public void setUp() throws Exception {
         // start simple server
-        _server = Proxies.newServer("server", 9876, new ConcurrentHashMap<String, Object>());
+        _server = Proxies.newServer("server", 0, new ConcurrentHashMap<String, Object>());
 
         // "client"
-        _proxy = Proxies.newClient("map", "localhost:9876", ConcurrentMap.class);
+        _proxy = Proxies.newClient("map", "localhost:" + _server.getPort(), ConcurrentMap.class);
     }
 
     @After
@@ -68,4 +72,70 @@ public class SerializationFailureTest extends AbstractTestCase {
         }
     }
 
+    public void testSerializationFailureAfterChunks() throws Exception {
+        unserializableAfterChunks();
+
+        // as above, with the connection shared by callers.
+        ((RmiInvocationHandler)Proxy.getInvocationHandler(_proxy)).setMultiplexedConnections(1);
+        unserializableAfterChunks();
+    }
+
+    private void unserializableAfterChunks() {
+        char[] chars = new char[AbstractDataSocket.CHUNK_SIZE + 8 * 1024];
+        Arrays.fill(chars, 'x');
+        String key = new String(chars);
+
+        // the key is sent in chunks before the value fails.
+        try {
+            _proxy.put(key, new Thread());
+            fail();
+        }
+        catch (UndeclaredThrowableException ute) {
+            assertEquals(NotSerializableException.class, ute.getCause().getClass());
+        }
+
+        // on another connection, or the server would read it as the rest of the first call.
+        _proxy.put("key", "value2");
+        assertEquals("value2", _proxy.get("key"));
+        assertFalse(_proxy.containsKey(key));
+    }
+
+    static class Point {
+        int x;
+        double y;
+        String label;
+    }
+
+    public void testSchemaMismatch() throws Exception {
+        BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses());
+        VanillaPojoSerializer serializer = new VanillaPojoSerializer(getMetaClasses());
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        Point point = new Point();
+        point.x = 1;
+        point.y = 2.5;
+        point.label = "one";
+        serializer.serialize(buffer, wf, point);
+        buffer.flip();
+
+        Point point2 = serializer.deserialize(buffer, wf);
+        assertEquals(1, point2.x);
+        assertEquals(2.5, point2.y);
+        assertEquals("one", point2.label);
+
+        // as sent by a version of Point with its fields reordered, y removed and z added.
+        buffer.clear();
+        wf.writeTag(buffer, Point.class.getName() + ",label,z,x");
+        wf.writeObject(buffer, "two");
+        wf.writeNum(buffer, 42);
+        wf.writeNum(buffer, 2);
+        buffer.flip();
+
+        Point point3 = serializer.deserialize(buffer, wf);
+        assertEquals(2, point3.x);
+        assertEquals(0.0, point3.y);
+        assertEquals("two", point3.label);
+        assertFalse(buffer.hasRemaining());
+    }
+
 }
@@ -0,0 +1,162 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.freshvanilla.rmi.Proxies;
+import org.freshvanilla.rmi.VanillaRmiServer;
+import org.freshvanilla.test.AbstractTestCase;
+
+public class SerializerRegistryTest extends AbstractTestCase {
+
+    public static final class Price {
+        final String _symbol;
+        final long _mantissa;
+        final int _exponent;
+
+        public Price(String symbol, long mantissa, int exponent) {
+            _symbol = symbol;
+            _mantissa = mantissa;
+            _exponent = exponent;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Price)) return false;
+            Price price = (Price)o;
+            return _symbol.equals(price._symbol) && _mantissa == price._mantissa && _exponent == price._exponent;
+        }
+
+        public int hashCode() {
+            return _symbol.hashCode() * 31 + (int)_mantissa;
+        }
+    }
+
+    static class PriceSerializer implements TypeSerializer<Price> {
+        public Class<Price> getType() {
+            return Price.class;
+        }
+
+        public void write(ByteBuffer wb, WireFormat wf, Price price) throws IOException {
+            wf.writeObject(wb, price._symbol);
+            wf.writeNum(wb, price._mantissa);
+            wf.writeNum(wb, price._exponent);
+        }
+
+        public Price read(ByteBuffer rb, WireFormat wf) throws ClassNotFoundException, IOException {
+            return new Price((String)wf.readObject(rb), wf.readNum(rb), (int)wf.readNum(rb));
+        }
+    }
+
+    public interface Prices {
+        public Price improve(Price price);
+    }
+
+    public static class PricesImpl implements Prices {
+        public Price improve(Price price) {
+            return new Price(price._symbol, price._mantissa + 1, price._exponent);
+        }
+    }
+
+    public void test_writesRegisteredTypes() throws Exception {
+        SerializerRegistry serializers = new SerializerRegistry();
+        serializers.register(7, new PriceSerializer());
+        BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses(), new VanillaPojoSerializer(getMetaClasses()),
+            serializers);
+
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        Price price = new Price("EUR/USD", 108455, -5);
+        wf.writeObject(buffer, price);
+        // a tag, a type id and the fields, without a class name.
+        assertEquals(1 + 1 + 9 + 5 + 2, buffer.position());
+
+        List<Price> prices = Arrays.asList(price, new Price("GBP/USD", 126010, -5));
+        wf.writeObject(buffer, prices);
+        buffer.flip();
+        assertEquals(price, wf.readObject(buffer));
+        assertEquals(prices, wf.readObject(buffer));
+
+        buffer.clear();
+        wf.writeObject(buffer, price);
+        buffer.flip();
+        try {
+            new BinaryWireFormat(getMetaClasses()).readObject(buffer);
+            fail();
+        }
+        catch (StreamCorruptedException expected) {
+            // not registered at this end.
+        }
+    }
+
+    public void test_registeredAfterWriting() throws Exception {
+        BinaryWireFormat.Builder builder = new BinaryWireFormat.Builder(getName(), getMetaClasses());
+        WireFormat wf = builder.create();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        Price price = new Price("EUR/USD", 108455, -5);
+        wf.writeObject(buffer, price);
+        int pojoSize = buffer.position();
+
+        // used by the wire formats already created as well as new ones.
+        builder.getSerializers().register(7, new PriceSerializer());
+        buffer.clear();
+        wf.writeObject(buffer, price);
+        assertTrue(buffer.position() < pojoSize);
+        buffer.flip();
+        assertEquals(price, builder.create().readObject(buffer));
+        builder.close();
+    }
+
+    public void test_rejectsDuplicates() {
+        SerializerRegistry serializers = new SerializerRegistry();
+        serializers.register(1, new PriceSerializer());
+        try {
+            serializers.register(2, new PriceSerializer());
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+            // Price is registered
+        }
+        try {
+            serializers.register(-1, new PriceSerializer());
+            fail();
+        }
+        catch (IllegalArgumentException expected) {
+            // out of range
+        }
+    }
+
+    public void test_remoteCall() throws Exception {
+        VanillaRmiServer<PricesImpl> server = Proxies.newServer(getName(), 0, new PricesImpl());
+        server.getSerializers().register(1, new PriceSerializer());
+        DataSocketFactory factory = new DataSocketFactory(getName(), "localhost:" + server.getPort(), 1000,
+            getMetaClasses());
+        factory.getSerializers().register(1, new PriceSerializer());
+
+        try {
+            Prices client = Proxies.newClient(new CachedDataSocketFactory(getName(), factory), Prices.class);
+            assertEquals(new Price("EUR/USD", 108456, -5), client.improve(new Price("EUR/USD", 108455, -5)));
+        }
+        finally {
+            factory.close();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.net;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+
+import org.freshvanilla.test.AbstractTestCase;
+
+public class StringCacheTest extends AbstractTestCase {
+
+    @SuppressWarnings("unchecked")
+    public void test_sameInstanceForRepeatedStrings() throws Exception {
+        for (Set<String> features : new Set[]{Collections.<String>emptySet(),
+            Collections.singleton(BinaryWireFormat.COMPACT_STRINGS)}) {
+            StringCache cache = new StringCache(64);
+            BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses());
+            wf.enableFeatures(features);
+            wf.setStringCache(cache);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+            String[] texts = {"EUR/USD", "\u00e9t\u00e9", "\u65e5\u672c", "EUR/USD", "\u00e9t\u00e9", "\u65e5\u672c"};
+            for (String text : texts) {
+                wf.writeObject(buffer, new String(text));
+            }
+            buffer.flip();
+
+            Object[] read = new Object[texts.length];
+            for (int i = 0; i < texts.length; i++) {
+                read[i] = wf.readObject(buffer);
+                assertEquals(texts[i], read[i]);
+            }
+            assertSame(read[0], read[3]);
+            assertSame(read[1], read[4]);
+            if (!features.isEmpty()) {
+                // as UTF-8
+                assertSame(read[2], read[5]);
+                assertEquals(3, cache.getHits());
+            }
+            else {
+                // a String with chars >= 255 isn't cached.
+                assertNotSame(read[2], read[5]);
+                assertEquals(2, cache.getHits());
+            }
+            assertEquals(0.5, cache.getHitRate(), 0.01);
+        }
+    }
+
+    public void test_latin1AndUtf8Differ() {
+        StringCache cache = new StringCache(1);
+        byte[] bytes = {(byte)0xC3, (byte)0xA9};
+        cache.add(bytes, 2, true, "\u00e9");
+        assertNull(cache.get(bytes, 2, false));
+        assertEquals("\u00e9", cache.get(bytes, 2, true));
+
+        byte[] longBytes = new byte[StringCache.MAXIMUM_LENGTH + 1];
+        cache.add(longBytes, longBytes.length, false, new String(new char[longBytes.length]));
+        assertNull(cache.get(longBytes, longBytes.length, false));
+        assertEquals("\u00e9", cache.get(bytes, 2, true));
+        assertEquals(2, cache.getHits());
+    }
+}
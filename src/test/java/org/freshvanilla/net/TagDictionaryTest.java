@@ -0,0 +1,72 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package org.freshvanilla.net;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+
+import org.freshvanilla.test.AbstractTestCase;
+
+public class TagDictionaryTest extends AbstractTestCase {
+
+    public void test_evictsLeastRecentlyUsed() {
+        int seeds = TagDictionary.SEED_TAGS.length;
+        TagDictionary tags = new TagDictionary(seeds + 4);
+
+        assertEquals(1, tags.outSlot("java.lang.String", true));
+        // two of the four slots can be pinned.
+        assertEquals(-1 - seeds, tags.outSlot("Pinned1", true));
+        assertEquals(-2 - seeds, tags.outSlot("Pinned2", true));
+        assertEquals(-3 - seeds, tags.outSlot("key1", false));
+        assertEquals(-4 - seeds, tags.outSlot("Unpinned", true));
+        assertEquals(seeds + 2, tags.outSlot("key1", false));
+
+        // Unpinned is now the least recently used.
+        assertEquals(-4 - seeds, tags.outSlot("key2", false));
+        assertEquals(-3 - seeds, tags.outSlot("Unpinned", true));
+        assertEquals(seeds, tags.outSlot("Pinned1", true));
+        assertEquals(2, tags.getEvictions());
+    }
+
+    public void test_readerFollowsWriter() throws Exception {
+        BinaryWireFormat writer = new BinaryWireFormat(getMetaClasses());
+        writer.setTagCapacity(TagDictionary.SEED_TAGS.length + 16);
+        writer.enableFeatures(Collections.singleton(BinaryWireFormat.BOUNDED_TAGS));
+        BinaryWireFormat reader = new BinaryWireFormat(getMetaClasses());
+        reader.enableFeatures(Collections.singleton(BinaryWireFormat.BOUNDED_TAGS));
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> message = Collections.<String, Object>singletonMap("order-" + i, i);
+            buffer.clear();
+            writer.writeObject(buffer, message);
+            writer.writeObject(buffer, Thread.State.RUNNABLE);
+            buffer.flip();
+
+            assertEquals(message, reader.readObject(buffer));
+            assertEquals(Thread.State.RUNNABLE, reader.readObject(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+
+        // the enum's tag was only sent once.
+        buffer.clear();
+        writer.writeObject(buffer, Thread.State.RUNNABLE);
+        assertTrue(buffer.position() <= 4);
+    }
+}
@@ -21,15 +21,20 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.freshvanilla.net.BinaryWireFormat;
 import org.freshvanilla.test.AbstractTestCase;
+import org.freshvanilla.utils.Classes;
+import org.freshvanilla.utils.Classes.MetaMethod;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -111,6 +116,109 @@ public class BenchmarkTest extends AbstractTestCase {
         }
     }
 
+    // the bytes and time to encode and decode the messages of test_avg_latency.
+    public void test_encoding() throws Exception {
+        final PrimitivePojo ppojo = new PrimitivePojo(true, (byte)1, (short)2, '3', 4, 5.0f, 6L, 7.0d);
+        final WrapperPojo wpojo = new WrapperPojo(true, (byte)1, (short)2, '3', 4, 5.0f, 6L, 7.0d, "eight");
+        final List<WrapperPojo> wpojos = new ArrayList<WrapperPojo>();
+        for (int i = 0; i < 100; i++) {
+            wpojos.add(new WrapperPojo(i % 2 == 0, (byte)i, (short)(i * 100), (char)i, i * 1000, (float)i,
+                (long)i << 20, (double)i, String.valueOf(i)));
+        }
+        final long sequenceNumber = System.currentTimeMillis() * 1000L;
+        final Object[][] messages = {{sequenceNumber, 1, new Object[0]},
+            {sequenceNumber, 2, new Object[]{true, (byte)1, '2', (short)3, 4, 5.0f, 6.0}},
+            {sequenceNumber, 3, new Object[]{ppojo}}, {sequenceNumber, 4, new Object[]{wpojo}},
+            {sequenceNumber, 5, new Object[]{wpojos}}};
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        final int runs = isFullBuild() ? 100 * 1000 : 10 * 1000;
+
+        for (String features : new String[]{"", BinaryWireFormat.VARINTS}) {
+            BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses());
+            wf.enableFeatures(features.length() == 0
+                            ? Collections.<String>emptySet()
+                            : Collections.singleton(features));
+
+            for (int r = 0; r < 3; r++) {
+                StringBuilder sb = new StringBuilder();
+                for (Object[] message : messages) {
+                    long encode = 0;
+                    long decode = 0;
+                    int bytes = 0;
+                    for (int i = 0; i < runs; i++) {
+                        long start = System.nanoTime();
+                        buffer.clear();
+                        wf.writeNum(buffer, (Long)message[0]);
+                        wf.writeNum(buffer, (Integer)message[1]);
+                        Object[] args = (Object[])message[2];
+                        wf.writeArray(buffer, args.length, args);
+                        bytes = buffer.position();
+                        long mid = System.nanoTime();
+                        buffer.flip();
+                        wf.readNum(buffer);
+                        wf.readNum(buffer);
+                        wf.readObject(buffer);
+                        decode += System.nanoTime() - mid;
+                        encode += mid - start;
+                    }
+                    sb.append(' ').append(bytes).append(" bytes ").append(encode / runs).append('/')
+                        .append(decode / runs).append(" ns,");
+                }
+                LOG.info((r + 1) + ": encoding" + (features.length() == 0 ? "" : " with " + features)
+                         + ", bytes and encode/decode ns per message:" + sb);
+            }
+        }
+    }
+
+    // the bytes and time to encode and decode strings in a mix of languages.
+    public void test_strings() throws Exception {
+        final String[] texts = {"The quick brown fox jumps over the lazy dog",
+            "Voix ambigu\u00eb d'un c\u0153ur qui au z\u00e9phyr pr\u00e9f\u00e8re les jattes de kiwis",
+            "\u0421\u044a\u0435\u0448\u044c \u0436\u0435 \u0435\u0449\u0451 \u044d\u0442\u0438\u0445 "
+                + "\u043c\u044f\u0433\u043a\u0438\u0445 \u0444\u0440\u0430\u043d\u0446\u0443\u0437\u0441\u043a\u0438\u0445 "
+                + "\u0431\u0443\u043b\u043e\u043a",
+            "\u3044\u308d\u306f\u306b\u307b\u3078\u3068 \u3061\u308a\u306c\u308b\u3092 \u6211\u80fd\u541e\u4e0b"
+                + "\u73bb\u7483\u800c\u4e0d\u4f24\u8eab\u4f53"};
+        final List<String> mixed = new ArrayList<String>();
+        for (int i = 0; i < 25; i++) {
+            mixed.addAll(Arrays.asList(texts));
+        }
+        final Object[] messages = {texts[0], texts[1], texts[2], texts[3], mixed};
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        final int runs = isFullBuild() ? 100 * 1000 : 10 * 1000;
+
+        for (String features : new String[]{"", BinaryWireFormat.COMPACT_STRINGS}) {
+            BinaryWireFormat wf = new BinaryWireFormat(getMetaClasses());
+            wf.enableFeatures(features.length() == 0
+                            ? Collections.<String>emptySet()
+                            : Collections.singleton(features));
+
+            for (int r = 0; r < 3; r++) {
+                StringBuilder sb = new StringBuilder();
+                for (Object message : messages) {
+                    long encode = 0;
+                    long decode = 0;
+                    int bytes = 0;
+                    for (int i = 0; i < runs; i++) {
+                        long start = System.nanoTime();
+                        buffer.clear();
+                        wf.writeObject(buffer, message);
+                        bytes = buffer.position();
+                        long mid = System.nanoTime();
+                        buffer.flip();
+                        wf.readObject(buffer);
+                        decode += System.nanoTime() - mid;
+                        encode += mid - start;
+                    }
+                    sb.append(' ').append(bytes).append(" bytes ").append(encode / runs).append('/')
+                        .append(decode / runs).append(" ns,");
+                }
+                LOG.info((r + 1) + ": strings" + (features.length() == 0 ? "" : " with " + features)
+                         + ", bytes and encode/decode ns per message:" + sb);
+            }
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private static <T> T fromBytes(byte[] primBytes) throws IOException, ClassNotFoundException {
         return (T)new ObjectInputStream(new ByteArrayInputStream(primBytes)).readObject();
@@ -124,6 +232,59 @@ public class BenchmarkTest extends AbstractTestCase {
         return baos.toByteArray();
     }
 
+    // compares calling provider methods through a MethodHandle with calling them by reflection.
+    public void test_dispatch() throws Throwable {
+        final ServiceImpl service = new ServiceImpl();
+        final MetaMethod<?> prims = findMethod("prims");
+        final VanillaRmiServer.ServerMethod reflective = new VanillaRmiServer.ServerMethod(prims, service, false);
+        final VanillaRmiServer.ServerMethod handle = new VanillaRmiServer.ServerMethod(prims, service, true);
+        // as read from the wire
+        final Object[] wireArgs = {true, (byte)1, '2', (short)3, 4, 5.0f, 6.0};
+        final int runs = 200 * 1000;
+
+        for (int r = 0; r < 5; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                Object[] args = wireArgs.clone();
+                reflective.convertArguments(args);
+                assertEquals(7, reflective.invoke(args));
+            }
+            long reflectiveTime = (System.nanoTime() - start) / runs;
+
+            start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                Object[] args = wireArgs.clone();
+                handle.convertArguments(args);
+                assertEquals(7, handle.invoke(args));
+            }
+            long handleTime = (System.nanoTime() - start) / runs;
+
+            LOG.info((r + 1) + ": dispatch reflective = " + reflectiveTime + " ns, method handle = "
+                     + handleTime + " ns per call.");
+        }
+
+        // exceptions are thrown as they are by both.
+        final MetaMethod<?> count = findMethod("count");
+        for (boolean methodHandles : new boolean[]{false, true}) {
+            try {
+                new VanillaRmiServer.ServerMethod(count, service, methodHandles).invoke(new Object[3]);
+                fail();
+            }
+            catch (NullPointerException expected) {
+                // expected
+            }
+        }
+    }
+
+    private static MetaMethod<?> findMethod(String name) {
+        for (MetaMethod<?> method : Classes.getMemberMethods(ServiceImpl.class)) {
+            if (method.methodName.equals(name)) {
+                return method;
+            }
+        }
+        throw new AssertionError(name);
+    }
+
     public void test_avg_latency() throws IOException {
         VanillaRmiServer<ServiceImpl> server = null;
         IService service = null;
@@ -0,0 +1,120 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.rmi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.freshvanilla.test.AbstractTestCase;
+
+public class FutureRmiTest extends AbstractTestCase {
+
+    static final int CALLS = 10;
+
+    interface FutureClient {
+        public CompletableFuture<Integer> add(int a, int b);
+
+        public CompletionStage<Long> fail(String message);
+
+        public Future<String> concat(String a, String b);
+    }
+
+    interface SyncClient {
+        public long add(int a, int b);
+    }
+
+    public static class FutureServer {
+        private final List<CompletableFuture<Integer>> _pending = new ArrayList<CompletableFuture<Integer>>();
+        private final List<Integer> _sums = new ArrayList<Integer>();
+
+        // replies to none of the calls until CALLS of them have been made.
+        public synchronized CompletableFuture<Integer> add(int a, int b) {
+            CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+            _pending.add(future);
+            _sums.add(a + b);
+
+            if (_pending.size() == CALLS) {
+                for (int i = 0; i < CALLS; i++) {
+                    _pending.get(i).complete(_sums.get(i));
+                }
+                _pending.clear();
+                _sums.clear();
+            }
+            return future;
+        }
+
+        public CompletableFuture<Integer> fail(String message) {
+            CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+            future.completeExceptionally(new IllegalStateException(message));
+            return future;
+        }
+
+        public String concat(String a, String b) {
+            return a + b;
+        }
+    }
+
+    public void test_futures() throws Exception {
+        VanillaRmiServer<FutureServer> server = Proxies.newServer(getName(), 0, new FutureServer());
+        FutureClient client = null;
+        SyncClient syncClient = null;
+
+        try {
+            client = Proxies.newClient(getName(), "localhost:" + server.getPort(), FutureClient.class);
+
+            // the server holds no thread while its futures are incomplete.
+            List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+            for (int i = 0; i < CALLS; i++) {
+                futures.add(client.add(i, 1));
+            }
+            for (int i = 0; i < CALLS; i++) {
+                assertEquals(i + 1, (int)futures.get(i).get(5, TimeUnit.SECONDS));
+            }
+
+            try {
+                client.fail("oops").toCompletableFuture().get(5, TimeUnit.SECONDS);
+                fail("expected an ExecutionException");
+            }
+            catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof IllegalStateException);
+                assertEquals("oops", expected.getCause().getMessage());
+            }
+
+            assertEquals("Hi there", client.concat("Hi", " there").get(5, TimeUnit.SECONDS));
+
+            // a synchronous caller waits for the future as any other reply.
+            syncClient = Proxies.newClient(getName(), "localhost:" + server.getPort(), SyncClient.class);
+            for (int i = 0; i < CALLS - 1; i++) {
+                futures.set(i, client.add(i, 2));
+            }
+            assertEquals(CALLS + 1, syncClient.add(CALLS - 1, 2));
+            for (int i = 0; i < CALLS - 1; i++) {
+                assertEquals(i + 2, (int)futures.get(i).get(5, TimeUnit.SECONDS));
+            }
+        }
+        finally {
+            closeClient(client);
+            closeClient(syncClient);
+            closeServer(server);
+        }
+    }
+}
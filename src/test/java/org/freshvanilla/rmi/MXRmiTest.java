@@ -53,7 +53,7 @@ public class MXRmiTest extends AbstractTestCase {
             assertEquals(ManagementFactory.getRuntimeMXBean().getStartTime(), startTime);
 
             final boolean classPathSupported = mxBean.isBootClassPathSupported();
-            assertTrue(classPathSupported);
+            assertEquals(ManagementFactory.getRuntimeMXBean().isBootClassPathSupported(), classPathSupported);
 
             final List<String> stringList = mxBean.getInputArguments();
             assertNotNull(stringList);
@@ -0,0 +1,86 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.rmi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.freshvanilla.net.CachedDataSocketFactory;
+import org.freshvanilla.test.AbstractTestCase;
+
+public class OneWayTest extends AbstractTestCase {
+
+    interface Recorder {
+        @OneWay
+        public void record(String event);
+
+        @OneWay
+        public void fail(String message);
+
+        public List<String> recorded();
+    }
+
+    public static class RecorderImpl {
+        private final List<String> _recorded = new ArrayList<String>();
+
+        public synchronized void record(String event) {
+            _recorded.add(event);
+        }
+
+        public void fail(String message) {
+            throw new IllegalStateException(message);
+        }
+
+        public synchronized List<String> recorded() {
+            return new ArrayList<String>(_recorded);
+        }
+    }
+
+    interface BadRecorder {
+        @OneWay
+        public String recorded();
+    }
+
+    public void test_oneWay() throws Exception {
+        VanillaRmiServer<RecorderImpl> server = Proxies.newServer(getName(), 0, new RecorderImpl());
+        CachedDataSocketFactory factory = new CachedDataSocketFactory(getName(), "localhost:" + server.getPort(),
+            getMetaClasses());
+        // so a reply to a one way call would be read by the next call.
+        factory.setMaximumConnections(1);
+
+        try {
+            Recorder client = Proxies.newClient(factory, Recorder.class);
+            client.record("a");
+            client.fail("only logged");
+            client.record("b");
+            assertEquals(Arrays.asList("a", "b"), client.recorded());
+
+            try {
+                Proxies.newClient(factory, BadRecorder.class).recorded();
+                fail("expected an IllegalArgumentException");
+            }
+            catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+        finally {
+            factory.close();
+            closeServer(server);
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package org.freshvanilla.rmi;
 
 import java.io.IOException;
+import java.lang.reflect.Proxy;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.math.BigInteger;
 import java.net.MalformedURLException;
@@ -24,7 +25,9 @@ import java.util.Arrays;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.prefs.BackingStoreException;
 
 import org.freshvanilla.net.CachedDataSocketFactory;
@@ -45,6 +48,8 @@ public class RmiFailureTest extends AbstractTestCase {
         public int add(int a, int b);
 
         public String concat(String a, String b);
+
+        public long sleep(long millis) throws InterruptedException;
     }
 
     interface FaultyClient extends Server {
@@ -60,6 +65,13 @@ public class RmiFailureTest extends AbstractTestCase {
 
         // not implemented on the server.
         public String concat(String a, String b, String c);
+
+        @Timeout(100)
+        public void sleep(long millis, Callback<Long> callback);
+    }
+
+    interface SlowClient {
+        public void sleep(long millis, Callback<Long> callback);
     }
 
     static class FaultyServer implements Server {
@@ -78,6 +90,53 @@ public class RmiFailureTest extends AbstractTestCase {
         public String concat(String a, String b) {
             return a + b;
         }
+
+        public long sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+            return millis;
+        }
+    }
+
+    interface Overloaded {
+        public String describe(int i);
+
+        public String describe(String s);
+    }
+
+    static class OverloadedServer implements Overloaded {
+        public String describe(int i) {
+            return "int " + i;
+        }
+
+        public String describe(String s) {
+            return "String " + s;
+        }
+    }
+
+    public void test_overloadedMethods() throws IOException {
+        final VanillaRmiServer<OverloadedServer> server = Proxies.newServer(getName(), 0, new OverloadedServer());
+        Overloaded client = null;
+
+        try {
+            client = Proxies.newClient(getName(), "localhost:" + server.getPort(), Overloaded.class);
+
+            // only distinguishable by the method ids from the server.
+            for (int i = 0; i < 3; i++) {
+                assertEquals("int " + i, client.describe(i));
+                assertEquals("String " + i, client.describe(String.valueOf(i)));
+            }
+
+            // each connection resolves the ids for itself.
+            ((RmiInvocationHandler)Proxy.getInvocationHandler(client)).setMultiplexedConnections(3);
+            for (int i = 0; i < 9; i++) {
+                assertEquals("String " + i, client.describe(String.valueOf(i)));
+                assertEquals("int " + i, client.describe(i));
+            }
+        }
+        finally {
+            closeClient(client);
+            server.close();
+        }
     }
 
     public void test_faultyServer() throws IOException {
@@ -321,6 +380,127 @@ public class RmiFailureTest extends AbstractTestCase {
         }
     }
 
+    public void test_multiplexedCallers() throws IOException, InterruptedException {
+        final VanillaRmiServer<FaultyServer> server = Proxies.newServer(getName(), 0, new FaultyServer());
+        CachedDataSocketFactory factory = null;
+
+        try {
+            factory = new CachedDataSocketFactory("mx-client", "localhost:" + server.getPort(), getMetaClasses());
+            final FaultyClient client = Proxies.newClient(factory, FaultyClient.class);
+            ((RmiInvocationHandler)Proxy.getInvocationHandler(client)).setMultiplexedConnections(2);
+
+            int threads = 100;
+            final CallbackQueue<Boolean> cq = new CallbackQueue<Boolean>(threads);
+
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 200; i++) {
+                                assertEquals(id + i, client.add(id, i));
+                            }
+                            cq.onCallback(true);
+                        }
+                        catch (Throwable e) {
+                            cq.onException(e);
+                        }
+                    }
+                }).start();
+            }
+
+            for (int t = 0; t < threads; t++) {
+                assertTrue(cq.take(10 * 1000));
+            }
+
+            try {
+                client.throwsException();
+                fail("Expected BackingStoreException");
+            }
+            catch (BackingStoreException expected) {
+                // expected
+            }
+
+            assertEquals("Hi there", client.concat("Hi", " there"));
+        }
+        finally {
+            if (factory != null) {
+                factory.close();
+            }
+            server.close();
+        }
+    }
+
+    public void test_callbackTimeout() throws IOException, InterruptedException {
+        final VanillaRmiServer<FaultyServer> server = Proxies.newServer(getName(), 0, new FaultyServer());
+        FaultyClient client = null;
+
+        try {
+            client = Proxies.newClient(getName(), "localhost:" + server.getPort(), FaultyClient.class);
+            CallbackQueue<Long> cq = new CallbackQueue<Long>();
+            long start = System.currentTimeMillis();
+            client.sleep(5000, cq);
+
+            Object reply = cq.queue.poll(4, TimeUnit.SECONDS);
+            assertTrue(String.valueOf(reply), reply instanceof TimeoutException);
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+        finally {
+            closeClient(client);
+            server.close();
+        }
+    }
+
+    public void test_inFlightLimit() throws Exception {
+        final VanillaRmiServer<FaultyServer> server = Proxies.newServer(getName(), 0, new FaultyServer());
+        SlowClient client = null;
+
+        try {
+            client = Proxies.newClient(getName(), "localhost:" + server.getPort(), SlowClient.class);
+            RmiInvocationHandler handler = (RmiInvocationHandler)Proxy.getInvocationHandler(client);
+            handler.setMaximumInFlight(2, InFlightPolicy.REJECT);
+
+            CallbackQueue<Long> cq = new CallbackQueue<Long>();
+            client.sleep(200, cq);
+            client.sleep(200, cq);
+            assertEquals(2, handler.getInFlightCalls());
+
+            // rejected without being sent.
+            client.sleep(200, cq);
+            assertTrue(cq.queue.poll() instanceof RejectedExecutionException);
+
+            handler.setMaximumInFlight(2, InFlightPolicy.FAIL_FAST);
+            CallbackQueue<Long> cq2 = new CallbackQueue<Long>();
+            client.sleep(200, cq2);
+            client.sleep(200, cq2);
+            try {
+                client.sleep(200, cq2);
+                fail("expected a RejectedExecutionException");
+            }
+            catch (RejectedExecutionException expected) {
+                // expected
+            }
+
+            // waits for one of the first two replies.
+            handler.setMaximumInFlight(1, InFlightPolicy.BLOCK);
+            CallbackQueue<Long> cq3 = new CallbackQueue<Long>();
+            client.sleep(0, cq3);
+            client.sleep(0, cq3);
+            assertEquals(0L, (long)cq3.take(5000));
+            assertEquals(0L, (long)cq3.take(5000));
+            assertEquals(0, handler.getInFlightCalls());
+
+            for (int i = 0; i < 2; i++) {
+                assertEquals(200L, (long)cq.take(5000));
+                assertEquals(200L, (long)cq2.take(5000));
+            }
+        }
+        finally {
+            closeClient(client);
+            server.close();
+        }
+    }
+
     private static class CallbackQueue<T> implements Callback<T> {
         public final BlockingQueue<Object> queue;
 
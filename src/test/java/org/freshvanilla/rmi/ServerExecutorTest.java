@@ -0,0 +1,145 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+package org.freshvanilla.rmi;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.freshvanilla.net.CachedDataSocketFactory;
+import org.freshvanilla.test.AbstractTestCase;
+import org.freshvanilla.utils.Callback;
+
+public class ServerExecutorTest extends AbstractTestCase {
+
+    interface Service {
+        public boolean awaitRelease() throws InterruptedException;
+
+        public void release();
+
+        public List<Integer> appended();
+    }
+
+    interface AsyncService extends Service {
+        public void append(int i, Callback<Void> callback);
+    }
+
+    public static class ServiceImpl implements Service {
+        // counted down once a call is waiting to be released.
+        final CountDownLatch _awaiting = new CountDownLatch(1);
+        private final CountDownLatch _released = new CountDownLatch(1);
+        private final List<Integer> _appended = Collections.synchronizedList(new ArrayList<Integer>());
+
+        public boolean awaitRelease() throws InterruptedException {
+            _awaiting.countDown();
+            return _released.await(5, TimeUnit.SECONDS);
+        }
+
+        public void release() {
+            _released.countDown();
+        }
+
+        @Ordered
+        public void append(int i) {
+            _appended.add(i);
+        }
+
+        public List<Integer> appended() {
+            return new ArrayList<Integer>(_appended);
+        }
+    }
+
+    public void test_slowCallDoesntBlockConnection() throws Exception {
+        ServiceImpl service = new ServiceImpl();
+        VanillaRmiServer<ServiceImpl> server = Proxies.newServer(getName(), 0, service);
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        server.setExecutor(workers);
+        CachedDataSocketFactory factory = new CachedDataSocketFactory(getName(), "localhost:" + server.getPort(),
+            getMetaClasses());
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+
+        try {
+            final AsyncService client = Proxies.newClient(factory, AsyncService.class);
+            // both calls share one connection.
+            ((RmiInvocationHandler)Proxy.getInvocationHandler(client)).setMultiplexedConnections(1);
+
+            Future<Boolean> awaiting = caller.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    return client.awaitRelease();
+                }
+            });
+            // sent once the call waiting for it is running, on the same connection.
+            assertTrue(service._awaiting.await(5, TimeUnit.SECONDS));
+            client.release();
+            assertTrue(awaiting.get(5, TimeUnit.SECONDS));
+        }
+        finally {
+            caller.shutdownNow();
+            factory.close();
+            closeServer(server);
+            workers.shutdownNow();
+        }
+    }
+
+    public void test_orderedMethods() throws Exception {
+        VanillaRmiServer<ServiceImpl> server = Proxies.newServer(getName(), 0, new ServiceImpl());
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        server.setExecutor(workers);
+        CachedDataSocketFactory factory = new CachedDataSocketFactory(getName(), "localhost:" + server.getPort(),
+            getMetaClasses());
+        factory.setMaximumConnections(1);
+
+        try {
+            AsyncService client = Proxies.newClient(factory, AsyncService.class);
+            final BlockingQueue<Object> replies = new LinkedBlockingQueue<Object>();
+            Callback<Void> callback = new Callback<Void>() {
+                public void onCallback(Void v) {
+                    replies.add(Boolean.TRUE);
+                }
+
+                public void onException(Throwable t) {
+                    replies.add(t);
+                }
+            };
+
+            int count = 1000;
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < count; i++) {
+                client.append(i, callback);
+                expected.add(i);
+            }
+            for (int i = 0; i < count; i++) {
+                assertEquals(Boolean.TRUE, replies.poll(5, TimeUnit.SECONDS));
+            }
+            assertEquals(expected, client.appended());
+        }
+        finally {
+            factory.close();
+            closeServer(server);
+            workers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ Copyright 2008-2011 the original author or authors
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+
+
+package org.freshvanilla.rmi;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.freshvanilla.net.CachedDataSocketFactory;
+import org.freshvanilla.net.DataServerMode;
+import org.freshvanilla.net.WriteCoalescing;
+import org.freshvanilla.test.AbstractTestCase;
+import org.freshvanilla.utils.Callback;
+
+public class WriteCoalescingTest extends AbstractTestCase {
+
+    interface Echo {
+        public int echo(int i);
+
+        @OneWay
+        public void ping();
+    }
+
+    interface AsyncEcho extends Echo {
+        public void echo(int i, Callback<Integer> callback);
+    }
+
+    public static class EchoImpl implements Echo {
+        public int echo(int i) {
+            return i;
+        }
+
+        public void ping() {
+            // no reply
+        }
+    }
+
+    public void test_asyncBurst() throws Exception {
+        VanillaRmiServer<EchoImpl> server = Proxies.newServer(getName(), 0, new EchoImpl());
+        CachedDataSocketFactory factory = new CachedDataSocketFactory(getName(), "localhost:" + server.getPort(),
+            getMetaClasses());
+
+        try {
+            AsyncEcho client = Proxies.newClient(factory, AsyncEcho.class);
+            RmiInvocationHandler handler = (RmiInvocationHandler)Proxy.getInvocationHandler(client);
+            handler.setMultiplexedConnections(1);
+            WriteCoalescing coalescing = new WriteCoalescing(16 * 1024, 500);
+            handler.setWriteCoalescing(coalescing);
+
+            final BlockingQueue<Object> replies = new LinkedBlockingQueue<Object>();
+            Callback<Integer> callback = new Callback<Integer>() {
+                public void onCallback(Integer i) {
+                    replies.add(i);
+                }
+
+                public void onException(Throwable t) {
+                    replies.add(t);
+                }
+            };
+
+            int count = 1000;
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                client.echo(i, callback);
+                total += i;
+            }
+            for (int i = 0; i < count; i++) {
+                total -= (Integer)replies.poll(5, TimeUnit.SECONDS);
+            }
+            assertEquals(0, total);
+            // a sync call after the burst isn't held back for long.
+            assertEquals(7, client.echo(7));
+            assertTrue(coalescing.toString(), coalescing.getCoalescedWrites() > 0);
+        }
+        finally {
+            factory.close();
+            closeServer(server);
+        }
+    }
+
+    public void test_concurrentCallers() throws Exception {
+        VanillaRmiServer<EchoImpl> server = Proxies.newServer(getName(), 0, new EchoImpl());
+        CachedDataSocketFactory factory = new CachedDataSocketFactory(getName(), "localhost:" + server.getPort(),
+            getMetaClasses());
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+
+        try {
+            final Echo client = Proxies.newClient(factory, Echo.class);
+            RmiInvocationHandler handler = (RmiInvocationHandler)Proxy.getInvocationHandler(client);
+            handler.setMultiplexedConnections(1);
+            WriteCoalescing coalescing = new WriteCoalescing(16 * 1024, 0);
+            handler.setWriteCoalescing(coalescing);
+
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int t = 0; t < 8; t++) {
+                final int offset = t * 10000;
+                results.add(callers.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        for (int i = offset; i < offset + 2000; i++) {
+                            if (client.echo(i) != i) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get(30, TimeUnit.SECONDS));
+            }
+
+            long writes = 0;
+            for (long w : coalescing.getBatchSizeHistogram()) {
+                writes += w;
+            }
+            assertTrue(coalescing.toString(), writes > 0 && writes <= 8 * 2000);
+        }
+        finally {
+            callers.shutdownNow();
+            factory.close();
+            closeServer(server);
+        }
+    }
+
+    public void test_pipelinedRequests() throws Exception {
+        pipelinedRequests(DataServerMode.SELECTOR);
+        pipelinedRequests(DataServerMode.THREAD_PER_CONNECTION);
+    }
+
+    // the server reads several requests at once and writes their replies together.
+    private void pipelinedRequests(DataServerMode mode) throws Exception {
+        VanillaRmiServer<EchoImpl> server = Proxies.newServer(getName(), 0, new EchoImpl(), mode);
+        CachedDataSocketFactory factory = new CachedDataSocketFactory(getName(), "localhost:" + server.getPort(),
+            getMetaClasses());
+
+        try {
+            AsyncEcho client = Proxies.newClient(factory, AsyncEcho.class);
+            RmiInvocationHandler handler = (RmiInvocationHandler)Proxy.getInvocationHandler(client);
+            handler.setMultiplexedConnections(1);
+            handler.setWriteCoalescing(new WriteCoalescing(16 * 1024, 1000));
+
+            final BlockingQueue<Object> replies = new LinkedBlockingQueue<Object>();
+            Callback<Integer> callback = new Callback<Integer>() {
+                public void onCallback(Integer i) {
+                    replies.add(i);
+                }
+
+                public void onException(Throwable t) {
+                    replies.add(t);
+                }
+            };
+
+            for (int burst = 0; burst < 20; burst++) {
+                for (int i = 0; i < 10; i++) {
+                    client.echo(i, callback);
+                }
+                // the last request read has no reply, the others' are still sent.
+                client.ping();
+                for (int i = 0; i < 10; i++) {
+                    assertTrue(replies.poll(5, TimeUnit.SECONDS) instanceof Integer);
+                }
+            }
+        }
+        finally {
+            factory.close();
+            closeServer(server);
+        }
+    }
+}